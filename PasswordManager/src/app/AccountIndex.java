@@ -0,0 +1,430 @@
+package app;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the metadata of every account together with secondary indexes over it, so that queries
+ * such as "all accounts tagged prod" or "accounts not changed in 90 days" are answered from the
+ * indexes without decrypting anything or scanning every account. The indexes are:
+ * <ul>
+ * <li>tag to the account names with that tag</li>
+ * <li>modified time to the account names last changed at that time</li>
+ * <li>last copied time to the account names last copied at that time</li>
+ * </ul>
+ * The metadata is saved in accounts-meta.txt next to accounts.txt, so that the format of
+ * accounts.txt is unchanged. The file is a journal: each save appends a line for every account
+ * whose metadata was put or removed since the last save, and reading it replays the lines in
+ * order, so saving costs the same however many accounts there are.
+ */
+public class AccountIndex {
+    static final String COMMENT = "#";
+
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String TAG_SEPARATOR = ",";
+
+    private final HashMap<String, AccountMetadata> metadata = new HashMap<>();
+    private final HashMap<String, TreeSet<String>> tagIndex = new HashMap<>();
+    private final TreeMap<Long, TreeSet<String>> modifiedIndex = new TreeMap<>();
+    private final TreeMap<Long, TreeSet<String>> lastCopiedIndex = new TreeMap<>();
+    // The accounts whose metadata was put or removed since it was last saved
+    private final Set<String> changedAccounts = new HashSet<>();
+
+    /**
+     * @return the number of accounts with metadata
+     */
+    public int size() {
+        return metadata.size();
+    }
+
+    /**
+     * @param accountName the account name to look up
+     * @return the metadata of the account, or null if it has none
+     */
+    public AccountMetadata get(String accountName) {
+        return metadata.get(accountName);
+    }
+
+    /**
+     * Sets the metadata of an account, replacing any it already has.
+     *
+     * @param accountName the account name
+     * @param accountMetadata the metadata of the account
+     */
+    public void put(String accountName, AccountMetadata accountMetadata) {
+        set(accountName, accountMetadata);
+        changedAccounts.add(accountName);
+    }
+
+    /**
+     * Removes the metadata of an account.
+     *
+     * @param accountName the account name
+     */
+    public void remove(String accountName) {
+        delete(accountName);
+        changedAccounts.add(accountName);
+    }
+
+    private void set(String accountName, AccountMetadata accountMetadata) {
+        delete(accountName);
+        metadata.put(accountName, accountMetadata);
+        for (String tag : accountMetadata.getTags()) {
+            addToIndex(tagIndex, tag, accountName);
+        }
+        addToIndex(modifiedIndex, accountMetadata.getModified(), accountName);
+        addToIndex(lastCopiedIndex, accountMetadata.getLastCopied(), accountName);
+    }
+
+    private void delete(String accountName) {
+        AccountMetadata accountMetadata = metadata.remove(accountName);
+        if (accountMetadata == null)
+            return;
+
+        for (String tag : accountMetadata.getTags()) {
+            removeFromIndex(tagIndex, tag, accountName);
+        }
+        removeFromIndex(modifiedIndex, accountMetadata.getModified(), accountName);
+        removeFromIndex(lastCopiedIndex, accountMetadata.getLastCopied(), accountName);
+    }
+
+    /**
+     * Records that the password of an account was changed.
+     *
+     * @param accountName the account name
+     * @param time when the password was changed
+     */
+    public void markModified(String accountName, long time) {
+        put(accountName, getOrUnknown(accountName).withModified(time));
+    }
+
+    /**
+     * Records that the password of an account was copied.
+     *
+     * @param accountName the account name
+     * @param time when the password was copied
+     */
+    public void markCopied(String accountName, long time) {
+        put(accountName, getOrUnknown(accountName).withLastCopied(time));
+    }
+
+    /**
+     * @return every tag used by an account, sorted
+     */
+    public Set<String> tags() {
+        return new TreeSet<>(tagIndex.keySet());
+    }
+
+    /**
+     * @param tag the tag to look up
+     * @return the account names with the tag, sorted
+     */
+    public Set<String> accountsWithTag(String tag) {
+        TreeSet<String> accountNames = tagIndex.get(tag);
+        return accountNames == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(accountNames);
+    }
+
+    /**
+     * @param time the cut off time
+     * @return the account names whose password was last changed before <code>time</code>,
+     *         oldest first, including accounts where the time is unknown
+     */
+    public List<String> accountsModifiedBefore(long time) {
+        return flatten(modifiedIndex.headMap(time));
+    }
+
+    /**
+     * @param time the cut off time
+     * @return the account names whose password was last copied before <code>time</code>,
+     *         oldest first, including accounts that have never been copied
+     */
+    public List<String> accountsCopiedBefore(long time) {
+        return flatten(lastCopiedIndex.headMap(time));
+    }
+
+    /**
+     * Answers a query typed into the manager's filter field. The supported queries are:
+     * <ul>
+     * <li><code>tag:name</code> accounts tagged with <code>name</code></li>
+     * <li><code>unchanged:days</code> accounts whose password has not changed in the given number of days</li>
+     * <li><code>uncopied:days</code> accounts whose password has not been copied in the given number of days</li>
+     * <li>any other text, accounts whose name contains the text, ignoring case</li>
+     * </ul>
+     * Only the last query has to look at every account name.
+     *
+     * @param query the query
+     * @param now the current time
+     * @return the matching account names, sorted
+     */
+    public String[] query(String query, long now) {
+        query = query.trim();
+        Set<String> accountNames;
+        if (query.startsWith("tag:")) {
+            accountNames = accountsWithTag(query.substring("tag:".length()).trim());
+        } else if (query.startsWith("unchanged:") && isDays(query.substring("unchanged:".length()))) {
+            accountNames = new TreeSet<>(accountsModifiedBefore(now - daysToMillis(query.substring("unchanged:".length()))));
+        } else if (query.startsWith("uncopied:") && isDays(query.substring("uncopied:".length()))) {
+            accountNames = new TreeSet<>(accountsCopiedBefore(now - daysToMillis(query.substring("uncopied:".length()))));
+        } else {
+            String lowerCaseQuery = query.toLowerCase(Locale.ROOT);
+            accountNames = new TreeSet<>();
+            for (String accountName : metadata.keySet()) {
+                if (accountName.toLowerCase(Locale.ROOT).contains(lowerCaseQuery))
+                    accountNames.add(accountName);
+            }
+        }
+        return accountNames.toArray(new String[0]);
+    }
+
+    /**
+     * Makes the index cover exactly the accounts in a store. Accounts without metadata, such as
+     * those saved before metadata was recorded, are given metadata with unknown times, and the
+     * metadata of accounts no longer in the store is removed. These are not saved as changes.
+     *
+     * @param accountStore the accounts to cover
+     */
+    public void retainAccounts(AccountStore accountStore) {
+        Set<String> accountNames = new HashSet<>(Arrays.asList(accountStore.accountNames()));
+        for (String accountName : new ArrayList<>(metadata.keySet())) {
+            if (!accountNames.contains(accountName))
+                delete(accountName);
+        }
+        for (String accountName : accountNames) {
+            if (!metadata.containsKey(accountName))
+                set(accountName, getOrUnknown(accountName));
+        }
+    }
+
+    /**
+     * Merges in metadata saved by another instance of the application. For each account, the
+     * copy that was changed or used most recently is kept.
+     *
+     * @param other the metadata saved by the other instance
+     * @return true if any metadata was changed
+     */
+    public boolean mergeNewer(AccountIndex other) {
+        boolean changed = false;
+        for (Map.Entry<String, AccountMetadata> entry : other.metadata.entrySet()) {
+            AccountMetadata current = metadata.get(entry.getKey());
+            if (current == null || entry.getValue().lastTouched() > current.lastTouched()) {
+                put(entry.getKey(), entry.getValue());
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Parses the contents of a metadata file.
+     *
+     * @param contents the contents of a metadata file
+     * @return the index of the metadata
+     */
+    static AccountIndex parse(byte[] contents) {
+        AccountIndex accountIndex = new AccountIndex();
+        accountIndex.applyJournal(contents);
+        return accountIndex;
+    }
+
+    /**
+     * Replays lines of a metadata file saved by another instance. Each line holds the account
+     * name, URL, username, tags, created time, modified time and last copied time, separated by
+     * tabs, or only the account name if its metadata was removed. Text fields are URL encoded so
+     * that they cannot contain tabs, commas or line breaks. Lines starting with <code>#</code>
+     * are ignored. Accounts changed in this index since it was last saved are left alone, as
+     * saving it appends their lines after these.
+     *
+     * @param contents lines of a metadata file
+     */
+    void applyJournal(byte[] contents) {
+        for (String line : new String(contents, AccountsFile.CHARSET).split("\\R")) {
+            if (line.isEmpty() || line.startsWith(COMMENT))
+                continue;
+
+            String[] fields = line.split(FIELD_SEPARATOR, -1);
+            if (fields.length != 1 && fields.length < 7)
+                continue;
+
+            // Skip lines that were damaged, the account keeps unknown metadata instead
+            try {
+                String accountName = decode(fields[0]);
+                if (changedAccounts.contains(accountName))
+                    continue;
+
+                if (fields.length == 1) {
+                    delete(accountName);
+                } else {
+                    set(accountName, parseMetadata(fields, 1));
+                }
+            } catch (IllegalArgumentException err) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Formats the metadata of every account into the contents of a metadata file.
+     *
+     * @return the contents of the metadata file
+     */
+    byte[] format() {
+        StringBuilder builder = new StringBuilder();
+        for (String accountName : metadata.keySet()) {
+            appendLine(builder, accountName);
+        }
+        return builder.toString().getBytes(AccountsFile.CHARSET);
+    }
+
+    /**
+     * Formats the metadata of the accounts put or removed since the last save, as lines to
+     * append to the metadata file.
+     *
+     * @return the lines to append, empty if nothing changed
+     */
+    byte[] formatChanges() {
+        StringBuilder builder = new StringBuilder();
+        for (String accountName : changedAccounts) {
+            appendLine(builder, accountName);
+        }
+        return builder.toString().getBytes(AccountsFile.CHARSET);
+    }
+
+    /**
+     * Records that the changes returned by <code>formatChanges</code> were saved.
+     */
+    void clearChanges() {
+        changedAccounts.clear();
+    }
+
+    private void appendLine(StringBuilder builder, String accountName) {
+        builder.append(encode(accountName));
+        AccountMetadata accountMetadata = metadata.get(accountName);
+        if (accountMetadata != null) {
+            builder.append(FIELD_SEPARATOR);
+            appendMetadata(builder, accountMetadata);
+        }
+        builder.append(System.lineSeparator());
+    }
+
+    /**
+     * Appends the fields of a line of a metadata file that follow the account name: the URL,
+     * username, tags, created time, modified time and last copied time, separated by tabs.
+     *
+     * @param builder the builder to append the fields to
+     * @param accountMetadata the metadata of an account
+     */
+    static void appendMetadata(StringBuilder builder, AccountMetadata accountMetadata) {
+        List<String> tags = new ArrayList<>();
+        for (String tag : accountMetadata.getTags()) {
+            tags.add(encode(tag));
+        }
+        builder.append(encode(accountMetadata.getUrl())).append(FIELD_SEPARATOR)
+               .append(encode(accountMetadata.getUsername())).append(FIELD_SEPARATOR)
+               .append(String.join(TAG_SEPARATOR, tags)).append(FIELD_SEPARATOR)
+               .append(accountMetadata.getCreated()).append(FIELD_SEPARATOR)
+               .append(accountMetadata.getModified()).append(FIELD_SEPARATOR)
+               .append(accountMetadata.getLastCopied());
+    }
+
+    /**
+     * Parses the metadata fields appended by <code>appendMetadata</code>.
+     *
+     * @param fields the fields of a line
+     * @param start the index of the URL field
+     * @return the metadata
+     * @throws IllegalArgumentException if the fields are damaged
+     */
+    static AccountMetadata parseMetadata(String[] fields, int start) {
+        if (fields.length < start + 6)
+            throw new IllegalArgumentException("Missing metadata fields");
+
+        Set<String> tags = new TreeSet<>();
+        for (String tag : fields[start + 2].split(TAG_SEPARATOR)) {
+            if (!tag.isEmpty())
+                tags.add(decode(tag));
+        }
+        return new AccountMetadata(decode(fields[start]), decode(fields[start + 1]), tags,
+            Long.parseLong(fields[start + 3]), Long.parseLong(fields[start + 4]), Long.parseLong(fields[start + 5]));
+    }
+
+    private AccountMetadata getOrUnknown(String accountName) {
+        AccountMetadata accountMetadata = metadata.get(accountName);
+        return accountMetadata != null ? accountMetadata
+            : new AccountMetadata("", "", Collections.<String>emptySet(), 0, 0, 0);
+    }
+
+    private static <K> void addToIndex(Map<K, TreeSet<String>> index, K key, String accountName) {
+        TreeSet<String> accountNames = index.get(key);
+        if (accountNames == null) {
+            accountNames = new TreeSet<>();
+            index.put(key, accountNames);
+        }
+        accountNames.add(accountName);
+    }
+
+    private static <K> void removeFromIndex(Map<K, TreeSet<String>> index, K key, String accountName) {
+        TreeSet<String> accountNames = index.get(key);
+        if (accountNames == null)
+            return;
+        accountNames.remove(accountName);
+        if (accountNames.isEmpty())
+            index.remove(key);
+    }
+
+    private static List<String> flatten(Map<Long, TreeSet<String>> index) {
+        List<String> accountNames = new ArrayList<>();
+        for (TreeSet<String> names : index.values()) {
+            accountNames.addAll(names);
+        }
+        return accountNames;
+    }
+
+    private static boolean isDays(String text) {
+        return text.trim().matches("\\d{1,5}");
+    }
+
+    private static long daysToMillis(String days) {
+        return TimeUnit.DAYS.toMillis(Long.parseLong(days.trim()));
+    }
+
+    /**
+     * URL encodes a text field of a metadata or history file, so that it cannot contain
+     * tabs, commas or line breaks.
+     *
+     * @param text the text to encode
+     * @return the encoded text
+     */
+    static String encode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+
+    /**
+     * @param text a text field encoded with <code>encode</code>
+     * @return the decoded text
+     * @throws IllegalArgumentException if the field is damaged
+     */
+    static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package app;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The details saved with an account alongside its encrypted password: the URL and username of
+ * the account, the tags used to group it, and when it was created, last modified and last copied.
+ * Times are milliseconds since the epoch, where 0 means unknown (for example for accounts saved
+ * before metadata was recorded). None of the metadata is secret, so it is stored unencrypted.
+ * <p>
+ * <code>AccountMetadata</code> is immutable so that it can be shared by the indexes in
+ * <code>AccountIndex</code>. Changes are made by creating a new instance.
+ */
+public class AccountMetadata {
+    private final String url;
+    private final String username;
+    private final Set<String> tags;
+    private final long created;
+    private final long modified;
+    private final long lastCopied;
+
+    /**
+     * @param url the URL of the account, or an empty string
+     * @param username the username of the account, or an empty string
+     * @param tags the tags of the account
+     * @param created when the account was created
+     * @param modified when the password of the account was last changed
+     * @param lastCopied when the password of the account was last copied
+     */
+    public AccountMetadata(String url, String username, Set<String> tags, long created, long modified, long lastCopied) {
+        this.url = url;
+        this.username = username;
+        this.tags = Collections.unmodifiableSet(new TreeSet<>(tags));
+        this.created = created;
+        this.modified = modified;
+        this.lastCopied = lastCopied;
+    }
+
+    /**
+     * Creates the metadata of a new account.
+     *
+     * @param url the URL of the account, or an empty string
+     * @param username the username of the account, or an empty string
+     * @param tags the tags of the account
+     * @param now the current time
+     * @return metadata created and modified at <code>now</code>, and never copied
+     */
+    public static AccountMetadata created(String url, String username, Set<String> tags, long now) {
+        return new AccountMetadata(url, username, tags, now, now, 0);
+    }
+
+    /**
+     * Parses a comma separated list of tags, as typed by the user.
+     *
+     * @param text the comma separated tags
+     * @return the tags, trimmed and without empty tags
+     */
+    public static Set<String> parseTags(String text) {
+        Set<String> tags = new TreeSet<>();
+        for (String tag : text.split(",")) {
+            if (!tag.isBlank())
+                tags.add(tag.trim());
+        }
+        return tags;
+    }
+
+    /**
+     * @return the URL of the account, or an empty string
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the username of the account, or an empty string
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the tags of the account, sorted and unmodifiable
+     */
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return when the account was created, or 0 if unknown
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return when the password of the account was last changed, or 0 if unknown
+     */
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * @return when the password of the account was last copied, or 0 if never
+     */
+    public long getLastCopied() {
+        return lastCopied;
+    }
+
+    /**
+     * @param time when the password was changed
+     * @return a copy of the metadata modified at <code>time</code>
+     */
+    public AccountMetadata withModified(long time) {
+        return new AccountMetadata(url, username, tags, created, time, lastCopied);
+    }
+
+    /**
+     * @param time when the password was copied
+     * @return a copy of the metadata last copied at <code>time</code>
+     */
+    public AccountMetadata withLastCopied(long time) {
+        return new AccountMetadata(url, username, tags, created, modified, time);
+    }
+
+    /**
+     * @return the most recent time the account was changed or used, which decides which copy
+     *         of the metadata is kept when two instances have both saved it
+     */
+    long lastTouched() {
+        return Math.max(modified, lastCopied);
+    }
+}
@@ -0,0 +1,452 @@
+package app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Holds the saved account names and their encrypted passwords in a compact form. Holding every
+ * entry as two strings in a HashMap costs two objects, a map node and a Base64 copy of the
+ * ciphertext per entry, which adds up to a lot of heap for a large vault whose entries are rarely
+ * touched.
+ * <p>
+ * Instead, account names are stored as UTF-8 in one byte array (the name arena) and the raw
+ * ciphertext bytes are stored in another (the ciphertext arena). Each entry is a row in a set of
+ * int arrays holding its offsets, lengths and hash, and entries are found through an open
+ * addressing hash table of entry numbers using linear probing. Space left behind by removed or
+ * replaced entries is reclaimed by compacting the arenas once it makes up half of them.
+ * <p>
+ * An <code>AccountStore</code> is not thread safe.
+ */
+public class AccountStore {
+    private static final int DEFAULT_CAPACITY = 16;
+    // The hash table is kept at most half full so probe sequences stay short
+    private static final int SLOTS_PER_ENTRY = 2;
+    // Arenas are only compacted once they hold at least this many unused bytes
+    private static final int MIN_COMPACT_GARBAGE = 4096;
+
+    private byte[] nameArena;
+    private int nameArenaSize;
+    private byte[] ciphertextArena;
+    private int ciphertextArenaSize;
+    private int garbageBytes;
+
+    // Entry columns, indexed by entry number
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    private int[] ciphertextOffsets;
+    private int[] ciphertextLengths;
+    private int[] hashes;
+    private int size;
+
+    // Hash table of entry number + 1, where 0 marks an empty slot
+    private int[] slots;
+
+    // Account names put or removed since changes started being tracked, or null when not tracking
+    private Set<String> changedAccounts;
+
+    /**
+     * Creates an empty store.
+     */
+    public AccountStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty store sized to hold a number of entries without resizing.
+     *
+     * @param expectedEntries the number of entries the store is expected to hold
+     */
+    public AccountStore(int expectedEntries) {
+        int capacity = Math.max(DEFAULT_CAPACITY, expectedEntries);
+        nameArena = new byte[capacity * 16];
+        ciphertextArena = new byte[capacity * 32];
+        nameOffsets = new int[capacity];
+        nameLengths = new int[capacity];
+        ciphertextOffsets = new int[capacity];
+        ciphertextLengths = new int[capacity];
+        hashes = new int[capacity];
+        slots = new int[tableSizeFor(capacity)];
+    }
+
+    /**
+     * @return the number of accounts in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param accountName the account name to look for
+     * @return true if the store holds a password for the account
+     */
+    public boolean containsAccount(String accountName) {
+        byte[] name = encode(accountName);
+        return slots[findSlot(name, hash(name))] != 0;
+    }
+
+    /**
+     * @param accountName the account name to look up
+     * @return a copy of the encrypted password of the account, or null if the
+     *         store does not hold the account
+     */
+    public byte[] get(String accountName) {
+        byte[] name = encode(accountName);
+        int slot = slots[findSlot(name, hash(name))];
+        if (slot == 0)
+            return null;
+
+        return ciphertext(slot - 1);
+    }
+
+    /**
+     * Compares the encrypted password of an account without copying it out of the store.
+     *
+     * @param accountName the account name to look up
+     * @param ciphertext the encrypted password to compare with
+     * @return true if the store holds the account with exactly this encrypted password
+     */
+    public boolean hasCiphertext(String accountName, byte[] ciphertext) {
+        byte[] name = encode(accountName);
+        int slot = slots[findSlot(name, hash(name))];
+        if (slot == 0)
+            return false;
+
+        int entry = slot - 1;
+        return Arrays.equals(ciphertextArena, ciphertextOffsets[entry], ciphertextOffsets[entry] + ciphertextLengths[entry],
+            ciphertext, 0, ciphertext.length);
+    }
+
+    /**
+     * Adds an account, or replaces the encrypted password of an account already in the store.
+     *
+     * @param accountName the account name
+     * @param ciphertext the encrypted password of the account
+     * @return true if the account was not already in the store
+     */
+    public boolean put(String accountName, byte[] ciphertext) {
+        if (changedAccounts != null)
+            changedAccounts.add(accountName);
+
+        byte[] name = encode(accountName);
+        int hash = hash(name);
+        int slotIndex = findSlot(name, hash);
+        int slot = slots[slotIndex];
+
+        // Replace the ciphertext in place when it fits, otherwise append it to the arena
+        if (slot != 0) {
+            int entry = slot - 1;
+            if (ciphertext.length <= ciphertextLengths[entry]) {
+                garbageBytes += ciphertextLengths[entry] - ciphertext.length;
+            } else {
+                garbageBytes += ciphertextLengths[entry];
+                ciphertextOffsets[entry] = appendCiphertext(ciphertext);
+            }
+            System.arraycopy(ciphertext, 0, ciphertextArena, ciphertextOffsets[entry], ciphertext.length);
+            ciphertextLengths[entry] = ciphertext.length;
+            compactIfNeeded();
+            return false;
+        }
+
+        if (size == hashes.length)
+            growEntries();
+        int entry = size;
+        nameOffsets[entry] = appendName(name);
+        nameLengths[entry] = name.length;
+        ciphertextOffsets[entry] = appendCiphertext(ciphertext);
+        System.arraycopy(ciphertext, 0, ciphertextArena, ciphertextOffsets[entry], ciphertext.length);
+        ciphertextLengths[entry] = ciphertext.length;
+        hashes[entry] = hash;
+        slots[slotIndex] = entry + 1;
+        size++;
+
+        if (size * SLOTS_PER_ENTRY > slots.length)
+            rehash(slots.length * 2);
+        return true;
+    }
+
+    /**
+     * Removes an account from the store.
+     *
+     * @param accountName the account name to remove
+     * @return true if the account was in the store
+     */
+    public boolean remove(String accountName) {
+        byte[] name = encode(accountName);
+        int slotIndex = findSlot(name, hash(name));
+        if (slots[slotIndex] == 0)
+            return false;
+
+        if (changedAccounts != null)
+            changedAccounts.add(accountName);
+        int entry = slots[slotIndex] - 1;
+        garbageBytes += nameLengths[entry] + ciphertextLengths[entry];
+        deleteSlot(slotIndex);
+
+        // Keep the entry columns dense by moving the last entry into the removed one's row
+        int lastEntry = size - 1;
+        if (entry != lastEntry) {
+            slots[findEntrySlot(lastEntry)] = entry + 1;
+            nameOffsets[entry] = nameOffsets[lastEntry];
+            nameLengths[entry] = nameLengths[lastEntry];
+            ciphertextOffsets[entry] = ciphertextOffsets[lastEntry];
+            ciphertextLengths[entry] = ciphertextLengths[lastEntry];
+            hashes[entry] = hashes[lastEntry];
+        }
+        size--;
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Adds every account in another store, replacing the passwords of accounts already in this store.
+     *
+     * @param other the store to add the accounts of
+     */
+    public void putAll(AccountStore other) {
+        for (int entry = 0; entry < other.size; entry++) {
+            put(other.accountName(entry), other.ciphertext(entry));
+        }
+    }
+
+    /**
+     * Starts recording the names of the accounts put or removed, so that a writer can save only
+     * what changed instead of the whole store. Recording is off by default, as the store is
+     * usually filled in bulk first.
+     */
+    public void trackChanges() {
+        changedAccounts = new HashSet<>();
+    }
+
+    /**
+     * @return the names of the accounts put or removed since <code>trackChanges</code> or
+     *         <code>clearChanges</code> was last called, or null if changes are not being tracked
+     */
+    public Set<String> changedAccounts() {
+        return changedAccounts == null ? null : Collections.unmodifiableSet(changedAccounts);
+    }
+
+    /**
+     * Forgets the changes recorded so far, once they have been saved.
+     */
+    public void clearChanges() {
+        if (changedAccounts != null)
+            changedAccounts.clear();
+    }
+
+    /**
+     * @return the account names in the store, in no particular order
+     */
+    public String[] accountNames() {
+        String[] accountNames = new String[size];
+        for (int entry = 0; entry < size; entry++) {
+            accountNames[entry] = accountName(entry);
+        }
+        return accountNames;
+    }
+
+    /**
+     * @return the account names in the store, sorted
+     */
+    public String[] sortedAccountNames() {
+        String[] accountNames = accountNames();
+        Arrays.sort(accountNames);
+        return accountNames;
+    }
+
+    /**
+     * @return a copy of the store that is not affected by later changes to this store, and
+     *         does not track changes
+     */
+    public AccountStore copy() {
+        AccountStore copy = new AccountStore(0);
+        copy.nameArena = Arrays.copyOf(nameArena, nameArenaSize);
+        copy.nameArenaSize = nameArenaSize;
+        copy.ciphertextArena = Arrays.copyOf(ciphertextArena, ciphertextArenaSize);
+        copy.ciphertextArenaSize = ciphertextArenaSize;
+        copy.garbageBytes = garbageBytes;
+        copy.nameOffsets = nameOffsets.clone();
+        copy.nameLengths = nameLengths.clone();
+        copy.ciphertextOffsets = ciphertextOffsets.clone();
+        copy.ciphertextLengths = ciphertextLengths.clone();
+        copy.hashes = hashes.clone();
+        copy.size = size;
+        copy.slots = slots.clone();
+        return copy;
+    }
+
+    /**
+     * Entries are numbered from 0 to <code>size() - 1</code>, in no particular order. Entry
+     * numbers change when an account is removed, so they are only valid until the next change.
+     *
+     * @param entry the entry number
+     * @return the account name of the entry
+     */
+    String accountName(int entry) {
+        return new String(nameArena, nameOffsets[entry], nameLengths[entry], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param entry the entry number
+     * @return a copy of the encrypted password of the entry
+     */
+    byte[] ciphertext(int entry) {
+        return Arrays.copyOfRange(ciphertextArena, ciphertextOffsets[entry],
+            ciphertextOffsets[entry] + ciphertextLengths[entry]);
+    }
+
+    private static byte[] encode(String accountName) {
+        return accountName.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] name) {
+        int hash = Arrays.hashCode(name);
+        // Spread the high bits down so they affect the masked slot index
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int tableSizeFor(int entries) {
+        return Integer.highestOneBit(Math.max(1, entries * SLOTS_PER_ENTRY - 1)) << 1;
+    }
+
+    /**
+     * Finds the slot holding an account name, or the empty slot where it would be inserted.
+     */
+    private int findSlot(byte[] name, int hash) {
+        int mask = slots.length - 1;
+        int slotIndex = hash & mask;
+        while (slots[slotIndex] != 0) {
+            int entry = slots[slotIndex] - 1;
+            if (hashes[entry] == hash && nameEquals(entry, name))
+                return slotIndex;
+            slotIndex = (slotIndex + 1) & mask;
+        }
+        return slotIndex;
+    }
+
+    /**
+     * Finds the slot pointing at an entry, which must be in the table.
+     */
+    private int findEntrySlot(int entry) {
+        int mask = slots.length - 1;
+        int slotIndex = hashes[entry] & mask;
+        while (slots[slotIndex] != entry + 1) {
+            slotIndex = (slotIndex + 1) & mask;
+        }
+        return slotIndex;
+    }
+
+    private boolean nameEquals(int entry, byte[] name) {
+        if (nameLengths[entry] != name.length)
+            return false;
+        int offset = nameOffsets[entry];
+        for (int i = 0; i < name.length; i++) {
+            if (nameArena[offset + i] != name[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Empties a slot, shifting later slots in the same probe sequence back so that
+     * no tombstones are needed.
+     */
+    private void deleteSlot(int slotIndex) {
+        int mask = slots.length - 1;
+        int empty = slotIndex;
+        slots[empty] = 0;
+        int next = empty;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slots[next] == 0)
+                return;
+
+            // Leave the entry if its home slot lies cyclically after the empty slot
+            int home = hashes[slots[next] - 1] & mask;
+            boolean reachable = empty <= next ? (empty < home && home <= next) : (empty < home || home <= next);
+            if (reachable)
+                continue;
+
+            slots[empty] = slots[next];
+            slots[next] = 0;
+            empty = next;
+        }
+    }
+
+    private void rehash(int tableSize) {
+        slots = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slotIndex = hashes[entry] & mask;
+            while (slots[slotIndex] != 0) {
+                slotIndex = (slotIndex + 1) & mask;
+            }
+            slots[slotIndex] = entry + 1;
+        }
+    }
+
+    private void growEntries() {
+        int capacity = hashes.length * 2;
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        ciphertextOffsets = Arrays.copyOf(ciphertextOffsets, capacity);
+        ciphertextLengths = Arrays.copyOf(ciphertextLengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+    }
+
+    private int appendName(byte[] name) {
+        if (nameArenaSize + name.length > nameArena.length)
+            nameArena = Arrays.copyOf(nameArena, Math.max(nameArena.length * 2, nameArenaSize + name.length));
+        System.arraycopy(name, 0, nameArena, nameArenaSize, name.length);
+        int offset = nameArenaSize;
+        nameArenaSize += name.length;
+        return offset;
+    }
+
+    /**
+     * Reserves space at the end of the ciphertext arena.
+     */
+    private int appendCiphertext(byte[] ciphertext) {
+        if (ciphertextArenaSize + ciphertext.length > ciphertextArena.length)
+            ciphertextArena = Arrays.copyOf(ciphertextArena,
+                Math.max(ciphertextArena.length * 2, ciphertextArenaSize + ciphertext.length));
+        int offset = ciphertextArenaSize;
+        ciphertextArenaSize += ciphertext.length;
+        return offset;
+    }
+
+    /**
+     * Copies the live entries into fresh arenas once removed and replaced entries
+     * make up half of the space in use.
+     */
+    private void compactIfNeeded() {
+        if (garbageBytes < MIN_COMPACT_GARBAGE || garbageBytes * 2 < nameArenaSize + ciphertextArenaSize)
+            return;
+
+        byte[] newNameArena = new byte[Math.max(16, nameArena.length / 2)];
+        byte[] newCiphertextArena = new byte[Math.max(16, ciphertextArena.length / 2)];
+        int newNameArenaSize = 0;
+        int newCiphertextArenaSize = 0;
+        for (int entry = 0; entry < size; entry++) {
+            if (newNameArenaSize + nameLengths[entry] > newNameArena.length)
+                newNameArena = Arrays.copyOf(newNameArena, newNameArena.length * 2 + nameLengths[entry]);
+            System.arraycopy(nameArena, nameOffsets[entry], newNameArena, newNameArenaSize, nameLengths[entry]);
+            nameOffsets[entry] = newNameArenaSize;
+            newNameArenaSize += nameLengths[entry];
+
+            if (newCiphertextArenaSize + ciphertextLengths[entry] > newCiphertextArena.length)
+                newCiphertextArena = Arrays.copyOf(newCiphertextArena, newCiphertextArena.length * 2 + ciphertextLengths[entry]);
+            System.arraycopy(ciphertextArena, ciphertextOffsets[entry], newCiphertextArena, newCiphertextArenaSize,
+                ciphertextLengths[entry]);
+            ciphertextOffsets[entry] = newCiphertextArenaSize;
+            newCiphertextArenaSize += ciphertextLengths[entry];
+        }
+        nameArena = newNameArena;
+        nameArenaSize = newNameArenaSize;
+        ciphertextArena = newCiphertextArena;
+        ciphertextArenaSize = newCiphertextArenaSize;
+        garbageBytes = 0;
+    }
+}
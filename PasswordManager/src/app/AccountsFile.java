@@ -0,0 +1,1064 @@
+package app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Reads and writes the accounts of the vault, held in the accounts.txt file or, once the vault has
+ * grown past a few thousand accounts, in the shard files listed by its manifest (see
+ * <code>ShardLayout</code>). The files can be changed by another running instance of the
+ * application or by a sync tool, so reads and writes are made while holding a lock on the
+ * accounts.lock file, and every write is checked against the version of the file that was last
+ * read. If the file has changed since then, the other writer's changes are merged in before the
+ * file is written so that no updates are lost.
+ * <p>
+ * The version of a file is the CRC32 checksum of its contents. This lets a reload skip parsing
+ * the file when nothing has changed, for example after this instance's own write. accounts.txt is
+ * not even read again while its file key, size and modified time are those it had when this
+ * instance last read or wrote it, unless it had been modified too recently for those to tell a
+ * later write apart (see <code>AtomicFiles.stamp</code>), in which case its checksum is compared.
+ * For a sharded vault the versions of the shards are listed in the manifest, so a reload only
+ * reads the manifest and the shards that changed, and a write only rewrites the shards holding
+ * the accounts that were put or removed since the store was read.
+ * <p>
+ * The metadata in accounts-meta.txt and the password history in accounts-history.txt are not
+ * sharded. The metadata is read when the vault is loaded, and both files are journals that are
+ * only appended to on each write, with the lines for the accounts that changed. They are
+ * compacted once they have doubled in size, so a write does not rewrite them however large the
+ * vault is.
+ * <p>
+ * Files are replaced atomically with <code>AtomicFiles</code>, so a crash during a write leaves
+ * the previous version of the file intact.
+ */
+public class AccountsFile {
+    // Location of the files used by the password manager
+    static final String DIRECTORY = "." + File.separator + "PasswordManager";
+    static final String ACCOUNTS_FILE_NAME = "accounts.txt";
+    static final String LOCK_FILE_NAME = "accounts.lock";
+    static final String METADATA_FILE_NAME = "accounts-meta.txt";
+    static final String HISTORY_FILE_NAME = "accounts-history.txt";
+
+    // The history file is compacted when it grows past this size, and then whenever it doubles
+    private static final long MIN_HISTORY_COMPACT_SIZE = 64 * 1024;
+    // The metadata file is compacted when it grows past this size, and then whenever it doubles
+    private static final long MIN_METADATA_COMPACT_SIZE = 64 * 1024;
+    // The length of the first line of the metadata file, which changes each time it is compacted
+    private static final int METADATA_HEADER_LENGTH = 17;
+    // The number of records read and re-encoded at a time when re-encoding a file
+    private static final int REENCODE_BATCH_SIZE = 1024;
+
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private final Path directory;
+    private final Path accountsPath;
+    private final Path lockPath;
+    private final Path metadataPath;
+    private final Path historyPath;
+
+    // The layout of the vault with the versions of its shards, and the accounts in each shard,
+    // when it was last read or written
+    private ShardLayout layout;
+    private AccountStore[] lastSyncedShards = {new AccountStore()};
+
+    // The store returned by the last read, whose tracked changes are relative to lastSyncedShards
+    private AccountStore trackedStore;
+
+    // The file key, size and modified time of accounts.txt when it was last read or written, or
+    // null if unknown, too recent to rely on, or the vault is sharded
+    private List<Object> accountsStamp;
+
+    // The size of the history file after it was last compacted by this instance
+    private long compactedHistorySize = 0;
+
+    // The first line of the metadata file and how much of it has been applied to the live
+    // metadata, so that only the lines appended since are read, and its compacted size
+    private String metadataHeader;
+    private long metadataSize = 0;
+    private long compactedMetadataSize = 0;
+
+    /**
+     * Re-encodes encrypted passwords, for example to re-encrypt them with a different cipher.
+     * Must be safe to call from several threads at once.
+     */
+    interface Reencoder {
+        /**
+         * @param ciphertext an encrypted password
+         * @return the re-encoded password, or null if it does not need re-encoding
+         * @throws GeneralSecurityException if the password could not be re-encoded
+         */
+        byte[] reencode(byte[] ciphertext) throws GeneralSecurityException;
+    }
+
+    /**
+     * Reads or writes files of the vault while holding the lock.
+     */
+    interface LockedAction {
+        /**
+         * @throws IOException if the file could not be read or written
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * Creates an <code>AccountsFile</code> for the accounts.txt file used by the application.
+     */
+    public AccountsFile() {
+        this(Paths.get(DIRECTORY));
+    }
+
+    /**
+     * Creates an <code>AccountsFile</code> for the accounts.txt file in the given directory.
+     *
+     * @param directory the directory containing accounts.txt
+     */
+    public AccountsFile(Path directory) {
+        this.directory = directory;
+        accountsPath = directory.resolve(ACCOUNTS_FILE_NAME);
+        lockPath = directory.resolve(LOCK_FILE_NAME);
+        metadataPath = directory.resolve(METADATA_FILE_NAME);
+        historyPath = directory.resolve(HISTORY_FILE_NAME);
+    }
+
+    /**
+     * @return the paths of the accounts.txt file and the manifest, one of which is written
+     *         whenever the accounts change, and of accounts-meta.txt, which is also written on
+     *         its own when an account is copied or its details are edited
+     */
+    List<Path> getWatchedPaths() {
+        return Arrays.asList(accountsPath, directory.resolve(ShardLayout.MANIFEST_FILE_NAME), metadataPath);
+    }
+
+    /**
+     * Reads the account names and their encrypted passwords into an <code>AccountStore</code>,
+     * and remembers them as the last known state of the vault. The shards of a sharded vault are
+     * read in parallel. The returned store tracks its changes, so that writing it only rewrites
+     * the shards holding the accounts that were put or removed.
+     *
+     * @return an <code>AccountStore</code> holding the account names and their encrypted passwords
+     * @throws IOException if the vault could not be locked or read
+     */
+    synchronized AccountStore read() throws IOException {
+        return read(false);
+    }
+
+    /**
+     * Reads the vault like <code>read()</code>, optionally treating a vault that has no accounts
+     * file yet as empty, for example the other side of a first sync.
+     *
+     * @param missingIsEmpty true to read a vault without an accounts file as an empty vault
+     * @return an <code>AccountStore</code> holding the account names and their encrypted passwords
+     * @throws IOException if the vault could not be locked or read
+     */
+    synchronized AccountStore read(boolean missingIsEmpty) throws IOException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.FILE_READ);
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock(0, Long.MAX_VALUE, true);
+            return readLocked(missingIsEmpty);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Reads the vault like <code>read()</code>, from an action run by <code>runLocked</code>, so
+     * that it can be read together with the metadata and history of the same version.
+     *
+     * @param missingIsEmpty true to read a vault without an accounts file as an empty vault
+     * @return an <code>AccountStore</code> holding the account names and their encrypted passwords
+     * @throws IOException if the vault could not be read
+     */
+    synchronized AccountStore readLocked(boolean missingIsEmpty) throws IOException {
+        ShardLayout fileLayout = ShardLayout.read(directory);
+        List<Object> stamp = AtomicFiles.stamp(accountsPath);
+        lastSyncedShards = readShards(fileLayout, allShards(fileLayout), null, missingIsEmpty);
+        layout = fileLayout;
+        accountsStamp = layout.isSingle() ? stamp : null;
+
+        AccountStore accountStore = union(lastSyncedShards);
+        accountStore.trackChanges();
+        trackedStore = accountStore;
+        return accountStore;
+    }
+
+    /**
+     * Re-reads the vault after it has been changed externally, and applies only the entries that
+     * changed since it was last read or written to <code>accountStore</code>. Nothing is
+     * parsed if the version of a file has not changed.
+     *
+     * @param accountStore the live store of account names and passwords to update
+     * @return true if any account was added, removed or changed
+     * @throws IOException if the file could not be locked or read
+     */
+    synchronized boolean reload(AccountStore accountStore) throws IOException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.FILE_READ);
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock(0, Long.MAX_VALUE, true);
+            return mergeFileChanges(accountStore, false);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Writes the account names and passwords in the store to the vault. The write is made while
+     * holding an exclusive lock, and if another writer changed the vault since it was last read
+     * their changes are first merged into <code>accountStore</code>. Where both writers changed
+     * the same account, the change held in <code>accountStore</code> wins. The passwords replaced
+     * or removed by the write are appended to the password history.
+     * <p>
+     * Only the shards whose contents changed are written. If <code>accountStore</code> is the
+     * store returned by the last <code>read</code>, only the shards of the accounts it put or
+     * removed are rebuilt, otherwise the whole store is split into shards and compared. A vault
+     * whose largest shard has grown past twice the target size is rebalanced into more shards.
+     *
+     * @param accountStore the live store of account names and passwords to write
+     * @return true if changes made by another writer were merged into <code>accountStore</code>
+     * @throws IOException if the file could not be locked, read or written
+     */
+    synchronized boolean write(AccountStore accountStore) throws IOException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.FILE_WRITE);
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            boolean merged = mergeFileChanges(accountStore, true);
+
+            AccountStore[] shards;
+            boolean[] changedShards = new boolean[layout.shardCount()];
+            Set<String> changedAccounts = accountStore == trackedStore ? accountStore.changedAccounts() : null;
+            if (changedAccounts != null) {
+                // Apply the changes to copies of the shards they fall in
+                shards = lastSyncedShards.clone();
+                for (String accountName : changedAccounts) {
+                    int shard = layout.shardOf(accountName);
+                    if (!changedShards[shard]) {
+                        shards[shard] = shards[shard].copy();
+                        changedShards[shard] = true;
+                    }
+                    byte[] ciphertext = accountStore.get(accountName);
+                    if (ciphertext == null) {
+                        shards[shard].remove(accountName);
+                    } else {
+                        shards[shard].put(accountName, ciphertext);
+                    }
+                }
+            } else {
+                shards = layout.split(accountStore);
+                Arrays.fill(changedShards, true);
+            }
+
+            writeShards(shards, changedShards, changedAccounts);
+            accountStore.clearChanges();
+            return merged;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Replaces every account in the file with the accounts in the store, without merging in
+     * changes made by other writers, for example when restoring a backup. The passwords that
+     * are replaced or removed are appended to the password history, so the restore can be
+     * rolled back.
+     *
+     * @param accountStore the accounts to write
+     * @throws IOException if the file could not be locked, read or written
+     */
+    synchronized void replace(AccountStore accountStore) throws IOException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.FILE_WRITE);
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            layout = ShardLayout.read(directory);
+            List<Object> stamp = AtomicFiles.stamp(accountsPath);
+            lastSyncedShards = readShards(layout, allShards(layout), null, true);
+            trackedStore = null;
+            accountsStamp = layout.isSingle() ? stamp : null;
+
+            boolean[] changedShards = new boolean[layout.shardCount()];
+            Arrays.fill(changedShards, true);
+            writeShards(layout.split(accountStore), changedShards, null);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Re-encodes every password in the vault, one shard at a time, without holding the whole
+     * vault, or even a whole shard, in memory. Each shard is streamed to a temporary file a batch
+     * of records at a time, re-encoding each batch in parallel, and replaced by it while holding
+     * the exclusive lock, and the lock is released between shards so the vault can still be used
+     * while a large vault is re-encoded. If the vault is rebalanced part way through, the shards of
+     * the new layout are re-encoded from the start, skipping passwords already re-encoded. The
+     * replaced passwords are not added to the password history, as they are the same passwords.
+     *
+     * @param reencoder re-encodes the passwords that need it
+     * @return the number of passwords that were re-encoded
+     * @throws IOException if the vault could not be locked, read or written
+     * @throws GeneralSecurityException if a password could not be re-encoded, in which case the
+     *                                  shard holding it is left unchanged
+     */
+    long reencode(Reencoder reencoder) throws IOException, GeneralSecurityException {
+        long reencoded = 0;
+        ShardLayout previousLayout = null;
+        int shard = 0;
+        while (true) {
+            try (FileChannel lockChannel = openLockChannel()) {
+                lockChannel.lock();
+                ShardLayout fileLayout = ShardLayout.read(directory);
+                if (!fileLayout.sameShards(previousLayout))
+                    shard = 0;
+                previousLayout = fileLayout;
+                if (shard == fileLayout.shardCount())
+                    return reencoded;
+
+                reencoded += reencodeShard(fileLayout, shard, reencoder);
+                shard++;
+            }
+        }
+    }
+
+    /**
+     * Re-encodes the passwords in one shard and writes it if any changed. Must be called while
+     * holding the exclusive lock.
+     *
+     * @return the number of passwords that were re-encoded
+     */
+    private static int reencodeShard(ShardLayout fileLayout, int shard, Reencoder reencoder)
+        throws IOException, GeneralSecurityException {
+        Path path = fileLayout.shardPath(shard);
+        if (!Files.exists(path))
+            return 0;
+
+        CRC32 crc = new CRC32();
+        int reencoded = reencodeRecords(path, reencoder, crc);
+        if (reencoded > 0 && !fileLayout.isSingle()) {
+            fileLayout.setVersion(shard, crc.getValue());
+            fileLayout.writeManifest();
+        }
+        return reencoded;
+    }
+
+    /**
+     * Re-encodes the passwords in a file in the format of accounts.txt that is kept next to it,
+     * such as the result of the last sync, while holding the exclusive lock.
+     *
+     * @param path the file to re-encode
+     * @param reencoder re-encodes the passwords that need it
+     * @return the number of passwords that were re-encoded
+     * @throws IOException if the file could not be locked, read or written
+     * @throws GeneralSecurityException if a password could not be re-encoded, in which case the
+     *                                  file is left unchanged
+     */
+    synchronized int reencodeFile(Path path, Reencoder reencoder) throws IOException, GeneralSecurityException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            if (!Files.exists(path))
+                return 0;
+            return reencodeRecords(path, reencoder, new CRC32());
+        }
+    }
+
+    /**
+     * Re-encodes the passwords in a file in the format of accounts.txt, streaming its records to
+     * a temporary file that replaces it if any changed. The records are read, re-encoded in
+     * parallel and written a batch at a time, so only one batch is held in memory however large
+     * the file is.
+     *
+     * @param checksum updated with the contents written, the version of the file if it changed
+     * @return the number of passwords that were re-encoded
+     */
+    private static int reencodeRecords(Path path, Reencoder reencoder, Checksum checksum)
+        throws IOException, GeneralSecurityException {
+        int[] reencoded = new int[1];
+        try (BufferedReader reader = Files.newBufferedReader(path, CHARSET)) {
+            AtomicFiles.write(path, out -> {
+                reencoded[0] = writeReencodedRecords(reader, new CheckedOutputStream(out, checksum), reencoder);
+                return reencoded[0] > 0;
+            });
+        } catch (ReencodeException err) {
+            throw err.getCause();
+        }
+        return reencoded[0];
+    }
+
+    /**
+     * Reads the records of an accounts file and writes them in the format of <code>format</code>,
+     * with their passwords re-encoded.
+     *
+     * @return the number of passwords that were re-encoded
+     * @throws IOException if a password in the file is not valid Base64, or the records could not
+     *                     be read or written
+     * @throws ReencodeException if a password could not be re-encoded
+     */
+    private static int writeReencodedRecords(BufferedReader reader, OutputStream out, Reencoder reencoder)
+        throws IOException {
+        Base64.Decoder decoder = Base64.getDecoder();
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] newLine = System.lineSeparator().getBytes(CHARSET);
+        List<String> accountNames = new ArrayList<>(REENCODE_BATCH_SIZE);
+        List<byte[]> ciphertexts = new ArrayList<>(REENCODE_BATCH_SIZE);
+        int reencoded = 0;
+        boolean firstRecord = true;
+        while (true) {
+            // Records are an account name line and a password line, separated by empty lines
+            String accountName = reader.readLine();
+            if (accountName != null && accountName.isEmpty())
+                continue;
+            if (accountName != null) {
+                String password = reader.readLine();
+                try {
+                    ciphertexts.add(decoder.decode(password == null ? "" : password));
+                } catch (IllegalArgumentException err) {
+                    throw new IOException("Accounts file contains a password that is not valid Base64", err);
+                }
+                accountNames.add(accountName);
+                if (accountNames.size() < REENCODE_BATCH_SIZE)
+                    continue;
+            }
+
+            byte[][] batch = ciphertexts.toArray(new byte[0][]);
+            IntStream.range(0, batch.length).parallel().forEach(entry -> {
+                try {
+                    byte[] ciphertext = reencoder.reencode(batch[entry]);
+                    if (ciphertext != null)
+                        batch[entry] = ciphertext;
+                } catch (GeneralSecurityException err) {
+                    throw new ReencodeException(err);
+                }
+            });
+            for (int entry = 0; entry < batch.length; entry++) {
+                if (batch[entry] != ciphertexts.get(entry))
+                    reencoded++;
+
+                // Avoid writing newlines at the end of the file
+                if (!firstRecord) {
+                    out.write(newLine);
+                    out.write(newLine);
+                }
+                firstRecord = false;
+                out.write(accountNames.get(entry).getBytes(CHARSET));
+                out.write(newLine);
+                out.write(encoder.encode(batch[entry]));
+            }
+            accountNames.clear();
+            ciphertexts.clear();
+
+            if (accountName == null) {
+                out.flush();
+                return reencoded;
+            }
+        }
+    }
+
+    /**
+     * Re-encodes the previous passwords in the password history, while holding the exclusive lock.
+     *
+     * @param reencoder re-encodes the passwords that need it
+     * @return the number of previous passwords that were re-encoded
+     * @throws IOException if the history file could not be locked, read or written
+     * @throws GeneralSecurityException if a password could not be re-encoded, in which case the
+     *                                  history is left unchanged
+     */
+    synchronized int reencodeHistory(Reencoder reencoder) throws IOException, GeneralSecurityException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            if (!Files.exists(historyPath))
+                return 0;
+
+            PasswordHistory history = PasswordHistory.parse(Files.readAllBytes(historyPath));
+            int reencoded = history.reencode(reencoder);
+            if (reencoded > 0) {
+                byte[] contents = history.format();
+                AtomicFiles.write(historyPath, contents);
+                compactedHistorySize = contents.length;
+            }
+            return reencoded;
+        }
+    }
+
+    /**
+     * Writes the shards that changed, recording the passwords they replace or remove in the
+     * history, and rebalances the vault if a shard has grown too large. Must be called while
+     * holding the exclusive lock, after the changes in the files have been merged.
+     *
+     * @param shards the new accounts of each shard of the current layout
+     * @param changedShards which shards may differ from the last synced shards
+     * @param changedAccounts the only accounts that may differ from the last synced shards, so
+     *                        only they are compared for the history, or null to compare every
+     *                        account in the changed shards
+     * @throws IOException if the shards, the manifest or the history could not be written
+     */
+    private void writeShards(AccountStore[] shards, boolean[] changedShards, Set<String> changedAccounts)
+            throws IOException {
+        // Compare against the files rather than the live store, so another writer's changes
+        // are not recorded twice
+        long now = System.currentTimeMillis();
+        if (changedAccounts != null)
+            appendHistory(PasswordHistory.formatChanges(lastSyncedShards, shards, layout, changedAccounts, now));
+        int largestShardSize = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (changedShards[shard] && changedAccounts == null)
+                appendHistory(PasswordHistory.formatChanges(lastSyncedShards[shard], shards[shard], now));
+            largestShardSize = Math.max(largestShardSize, shards[shard].size());
+        }
+
+        if (layout.needsRebalance(largestShardSize)) {
+            rebalance(union(shards));
+            return;
+        }
+
+        byte[][] contents = formatShards(shards, changedShards);
+        boolean written = false;
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (contents[shard] == null)
+                continue;
+
+            long version = checksum(contents[shard]);
+            if (version != layout.version(shard)) {
+                AtomicFiles.write(layout.shardPath(shard), contents[shard]);
+                layout.setVersion(shard, version);
+                written = true;
+            }
+        }
+        if (written && !layout.isSingle())
+            layout.writeManifest();
+        if (written && layout.isSingle())
+            accountsStamp = AtomicFiles.stamp(accountsPath);
+        lastSyncedShards = shards;
+    }
+
+    /**
+     * Writes every account into the next generation of the layout, with at least twice as many
+     * shards, then switches the manifest over to it and deletes the files of the old layout.
+     *
+     * @param accountStore every account in the vault
+     * @throws IOException if the new layout could not be written
+     */
+    private void rebalance(AccountStore accountStore) throws IOException {
+        ShardLayout newLayout = layout.rebalanced(accountStore.size());
+        AccountStore[] shards = newLayout.split(accountStore);
+        boolean[] changedShards = new boolean[shards.length];
+        Arrays.fill(changedShards, true);
+        byte[][] contents = formatShards(shards, changedShards);
+
+        Files.createDirectories(newLayout.generationDirectory());
+        for (int shard = 0; shard < shards.length; shard++) {
+            AtomicFiles.write(newLayout.shardPath(shard), contents[shard]);
+            newLayout.setVersion(shard, checksum(contents[shard]));
+        }
+        newLayout.writeManifest();
+
+        // Readers now follow the manifest to the new layout, so the old files are no longer used
+        for (int shard = 0; shard < layout.shardCount(); shard++) {
+            Files.deleteIfExists(layout.shardPath(shard));
+        }
+        if (!layout.isSingle())
+            Files.deleteIfExists(layout.generationDirectory());
+        layout = newLayout;
+        lastSyncedShards = shards;
+    }
+
+    /**
+     * Merges the changes another writer made to the vault since it was last read or written into
+     * <code>liveAccounts</code>, and remembers the files as the last known state of the vault. Only
+     * the shards whose versions changed are read, unless the vault has been rebalanced since.
+     * Must be called while holding a lock.
+     *
+     * @param liveAccounts the live store of account names and passwords to update
+     * @param missingIsEmpty whether a missing accounts.txt file is read as an empty vault
+     * @return true if any account was added, removed or changed
+     * @throws IOException if the files could not be read
+     */
+    private boolean mergeFileChanges(AccountStore liveAccounts, boolean missingIsEmpty) throws IOException {
+        ShardLayout fileLayout = ShardLayout.read(directory);
+        if (!fileLayout.sameShards(layout)) {
+            // The vault was rebalanced, so every account is compared
+            List<Object> stamp = AtomicFiles.stamp(accountsPath);
+            AccountStore[] fileShards = readShards(fileLayout, allShards(fileLayout), null, missingIsEmpty);
+            boolean changed = mergeExternalChanges(union(lastSyncedShards), union(fileShards), liveAccounts);
+            layout = fileLayout;
+            lastSyncedShards = fileShards;
+            accountsStamp = layout.isSingle() ? stamp : null;
+            return changed;
+        }
+
+        // The version of accounts.txt is only known by reading it, unless its stamp shows it is
+        // the same file as when it was last read or written, the shards are listed in the manifest
+        int[] shards;
+        List<Object> stamp = null;
+        if (fileLayout.isSingle()) {
+            stamp = AtomicFiles.stamp(accountsPath);
+            boolean unchanged = stamp != null && stamp.equals(accountsStamp);
+            shards = unchanged ? new int[0] : new int[] {0};
+            if (unchanged)
+                fileLayout.setVersion(0, layout.version(0));
+        } else {
+            shards = IntStream.range(0, fileLayout.shardCount())
+                .filter(shard -> fileLayout.version(shard) != layout.version(shard)).toArray();
+        }
+        AccountStore[] fileShards = readShards(fileLayout, shards, layout, missingIsEmpty);
+        if (fileLayout.isSingle())
+            accountsStamp = stamp;
+
+        boolean changed = false;
+        for (int shard = 0; shard < fileShards.length; shard++) {
+            if (fileShards[shard] != null) {
+                changed |= mergeExternalChanges(lastSyncedShards[shard], fileShards[shard], liveAccounts);
+                lastSyncedShards[shard] = fileShards[shard];
+            }
+        }
+        layout = fileLayout;
+        return changed;
+    }
+
+    /**
+     * Reads the metadata of the accounts from accounts-meta.txt, and compacts the file if it has
+     * grown to twice the size of the metadata it holds. Accounts in the store without metadata
+     * are given metadata with unknown times.
+     *
+     * @param accountStore the accounts read from the file
+     * @return the metadata of the accounts and its indexes
+     * @throws IOException if the metadata file could not be locked, read or written
+     */
+    synchronized AccountIndex readMetadata(AccountStore accountStore) throws IOException {
+        AccountIndex accountIndex;
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            accountIndex = readMetadataLocked(accountStore);
+
+            byte[] contents = accountIndex.format();
+            compactedMetadataSize = contents.length;
+            boolean journal = metadataHeader != null && metadataHeader.startsWith(AccountIndex.COMMENT);
+            if (Files.exists(metadataPath) && (!journal || metadataSize >= 2 * contents.length))
+                compactMetadata(contents);
+        }
+        return accountIndex;
+    }
+
+    /**
+     * Reads the metadata of the accounts like <code>readMetadata</code>, from an action run by
+     * <code>runLocked</code>, without compacting the file.
+     *
+     * @param accountStore the accounts read from the file
+     * @return the metadata of the accounts and its indexes
+     * @throws IOException if the metadata file could not be read
+     */
+    synchronized AccountIndex readMetadataLocked(AccountStore accountStore) throws IOException {
+        AccountIndex accountIndex = new AccountIndex();
+        metadataHeader = null;
+        mergeMetadataChanges(accountIndex, accountStore);
+        accountIndex.retainAccounts(accountStore);
+        return accountIndex;
+    }
+
+    /**
+     * Merges the metadata saved by other instances into <code>accountIndex</code>, and makes it
+     * cover exactly the accounts in <code>accountStore</code>. Only the lines appended to the
+     * metadata file since it was last read or written are read.
+     *
+     * @param accountIndex the live metadata to update
+     * @param accountStore the live store of account names and passwords
+     * @return true if any metadata was read, false if the file has not changed since
+     * @throws IOException if the metadata file could not be locked or read
+     */
+    synchronized boolean reloadMetadata(AccountIndex accountIndex, AccountStore accountStore) throws IOException {
+        boolean changed;
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock(0, Long.MAX_VALUE, true);
+            changed = mergeMetadataChanges(accountIndex, accountStore);
+        }
+        accountIndex.retainAccounts(accountStore);
+        return changed;
+    }
+
+    /**
+     * Appends the metadata of the accounts put or removed in <code>accountIndex</code> since it
+     * was last written to accounts-meta.txt, while holding an exclusive lock. Metadata saved by
+     * other instances is merged in first, except for the accounts being written, whose lines are
+     * appended after it. The file is compacted once it has doubled in size.
+     *
+     * @param accountIndex the live metadata to write
+     * @param accountStore the live store of account names and passwords
+     * @throws IOException if the metadata file could not be locked, read or written
+     */
+    synchronized void writeMetadata(AccountIndex accountIndex, AccountStore accountStore) throws IOException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            mergeMetadataChanges(accountIndex, accountStore);
+            if (metadataHeader == null) {
+                // A new file starts compacted, with a header to tell when it is replaced
+                accountIndex.retainAccounts(accountStore);
+                byte[] contents = accountIndex.format();
+                compactedMetadataSize = contents.length;
+                compactMetadata(contents);
+                accountIndex.clearChanges();
+                return;
+            }
+
+            byte[] lines = accountIndex.formatChanges();
+            if (lines.length == 0)
+                return;
+
+            Files.write(metadataPath, lines, StandardOpenOption.APPEND);
+            metadataSize += lines.length;
+            accountIndex.clearChanges();
+            if (metadataSize >= Math.max(MIN_METADATA_COMPACT_SIZE, compactedMetadataSize * 2)) {
+                byte[] contents = accountIndex.format();
+                compactedMetadataSize = contents.length;
+                compactMetadata(contents);
+            }
+        }
+    }
+
+    /**
+     * Replaces the metadata of every account with <code>accountIndex</code>, without merging in
+     * metadata saved by other instances, for example when restoring a backup. Accounts in the
+     * store without metadata are given metadata with unknown times.
+     *
+     * @param accountIndex the metadata to write
+     * @param accountStore the accounts the metadata is for
+     * @throws IOException if the metadata file could not be locked or written
+     */
+    synchronized void replaceMetadata(AccountIndex accountIndex, AccountStore accountStore) throws IOException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            accountIndex.retainAccounts(accountStore);
+            byte[] contents = accountIndex.format();
+            compactedMetadataSize = contents.length;
+            compactMetadata(contents);
+            accountIndex.clearChanges();
+        }
+    }
+
+    /**
+     * Applies the lines appended to the metadata file since it was last read or written to
+     * <code>accountIndex</code>. If another instance has compacted the file since, which gives
+     * it a new header, the whole file is read instead. Must be called while holding a lock.
+     *
+     * @param accountIndex the live metadata to update
+     * @param accountStore the live store of account names and passwords
+     * @return true if any metadata was read
+     * @throws IOException if the metadata file could not be read
+     */
+    private boolean mergeMetadataChanges(AccountIndex accountIndex, AccountStore accountStore) throws IOException {
+        if (!Files.exists(metadataPath)) {
+            metadataHeader = null;
+            metadataSize = 0;
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(metadataPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String header = new String(AccountsFileLoader.readRange(channel, 0, Math.min(size, METADATA_HEADER_LENGTH)),
+                CHARSET);
+            boolean compacted = !header.equals(metadataHeader) || size < metadataSize;
+            long start = compacted ? 0 : metadataSize;
+            accountIndex.applyJournal(AccountsFileLoader.readRange(channel, start, size));
+            if (compacted)
+                accountIndex.retainAccounts(accountStore);
+            metadataHeader = header;
+            metadataSize = size;
+            return size > start;
+        }
+    }
+
+    /**
+     * Replaces the metadata file with a new header followed by the metadata of every account.
+     * Must be called while holding the exclusive lock.
+     *
+     * @param contents the metadata of every account, formatted by <code>AccountIndex.format</code>
+     * @throws IOException if the metadata file could not be written
+     */
+    private void compactMetadata(byte[] contents) throws IOException {
+        String header = String.format("%s%016x", AccountIndex.COMMENT, ThreadLocalRandom.current().nextLong());
+        byte[] headerLine = (header + System.lineSeparator()).getBytes(CHARSET);
+        byte[] file = Arrays.copyOf(headerLine, headerLine.length + contents.length);
+        System.arraycopy(contents, 0, file, headerLine.length, contents.length);
+        AtomicFiles.write(metadataPath, file);
+        metadataHeader = header;
+        metadataSize = file.length;
+    }
+
+    /**
+     * Reads the previous passwords of the accounts from accounts-history.txt, dropping any past
+     * the retention set for <code>PasswordHistory</code>. The history is only read when it is
+     * needed, never when the accounts are loaded.
+     *
+     * @return the password history, empty if no password has been replaced
+     * @throws IOException if the history file could not be locked or read
+     */
+    synchronized PasswordHistory readHistory() throws IOException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock(0, Long.MAX_VALUE, true);
+            return readHistoryLocked();
+        }
+    }
+
+    /**
+     * Reads the password history like <code>readHistory</code>, from an action run by
+     * <code>runLocked</code>. The file is left as it is.
+     *
+     * @return the password history, empty if no password has been replaced
+     * @throws IOException if the history file could not be read
+     */
+    synchronized PasswordHistory readHistoryLocked() throws IOException {
+        PasswordHistory history = Files.exists(historyPath) ? PasswordHistory.parse(Files.readAllBytes(historyPath))
+            : new PasswordHistory();
+        history.trim(System.currentTimeMillis());
+        return history;
+    }
+
+    /**
+     * Adds the previous passwords in <code>history</code> that are not already in
+     * accounts-history.txt, for example when restoring a backup, and compacts the file.
+     *
+     * @param history the previous passwords to add
+     * @throws IOException if the history file could not be locked, read or written
+     */
+    synchronized void mergeHistory(PasswordHistory history) throws IOException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            PasswordHistory merged = Files.exists(historyPath) ? PasswordHistory.parse(Files.readAllBytes(historyPath))
+                : new PasswordHistory();
+            merged.merge(history);
+            merged.trim(System.currentTimeMillis());
+            byte[] compacted = merged.format();
+            AtomicFiles.write(historyPath, compacted);
+            compactedHistorySize = compacted.length;
+        }
+    }
+
+    /**
+     * Appends lines to the history file, and compacts the file if it has grown enough that
+     * dropping the versions past the retention is worthwhile. Must be called while holding the
+     * exclusive lock.
+     *
+     * @param lines the lines to append
+     * @throws IOException if the history file could not be read or written
+     */
+    private void appendHistory(byte[] lines) throws IOException {
+        if (lines.length == 0)
+            return;
+
+        Files.write(historyPath, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (Files.size(historyPath) < Math.max(MIN_HISTORY_COMPACT_SIZE, compactedHistorySize * 2))
+            return;
+
+        PasswordHistory history = PasswordHistory.parse(Files.readAllBytes(historyPath));
+        history.trim(System.currentTimeMillis());
+        byte[] compacted = history.format();
+        AtomicFiles.write(historyPath, compacted);
+        compactedHistorySize = compacted.length;
+    }
+
+    /**
+     * Applies the accounts that another writer added, removed or changed (the difference between
+     * <code>baseAccounts</code> and <code>fileAccounts</code>) to <code>liveAccounts</code>. Accounts
+     * that were also changed in <code>liveAccounts</code> since <code>baseAccounts</code> are left alone.
+     *
+     * @param baseAccounts the accounts when the file was last read or written
+     * @param fileAccounts the accounts currently in the file
+     * @param liveAccounts the accounts held by this instance, which are updated
+     * @return true if <code>liveAccounts</code> was changed
+     */
+    private static boolean mergeExternalChanges(AccountStore baseAccounts, AccountStore fileAccounts,
+        AccountStore liveAccounts) {
+        Set<String> accountNames = new HashSet<>(Arrays.asList(baseAccounts.accountNames()));
+        accountNames.addAll(Arrays.asList(fileAccounts.accountNames()));
+
+        boolean changed = false;
+        for (String accountName : accountNames) {
+            byte[] basePassword = baseAccounts.get(accountName);
+            byte[] filePassword = fileAccounts.get(accountName);
+            if (Arrays.equals(basePassword, filePassword))
+                continue;
+
+            // Keep changes this instance has made but not yet written
+            if (!Arrays.equals(basePassword, liveAccounts.get(accountName)))
+                continue;
+
+            if (filePassword == null) {
+                liveAccounts.remove(accountName);
+            } else {
+                liveAccounts.put(accountName, filePassword);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Reads and parses shards of the vault in parallel, recording the version of each shard read
+     * in <code>fileLayout</code>. Must be called while holding a lock.
+     *
+     * @param fileLayout the layout of the vault
+     * @param shards the numbers of the shards to read
+     * @param knownLayout the layout when the shards were last read, whose unchanged shards are
+     *                    not parsed, or null to parse every shard read
+     * @param missingIsEmpty whether a missing accounts.txt file is read as an empty vault
+     * @return the accounts in each shard that was parsed, null for the other shards
+     * @throws IOException if a shard could not be read or parsed
+     */
+    private static AccountStore[] readShards(ShardLayout fileLayout, int[] shards, ShardLayout knownLayout,
+        boolean missingIsEmpty) throws IOException {
+        AccountStore[] accountStores = new AccountStore[fileLayout.shardCount()];
+        try {
+            Arrays.stream(shards).parallel().forEach(shard -> {
+                try {
+                    Path path = fileLayout.shardPath(shard);
+                    if (missingIsEmpty && fileLayout.isSingle() && !Files.exists(path)) {
+                        accountStores[shard] = new AccountStore();
+                        fileLayout.setVersion(shard, -1);
+                        return;
+                    }
+
+                    AccountsFileLoader loader = AccountsFileLoader.read(path);
+                    long version = loader.checksum();
+                    fileLayout.setVersion(shard, version);
+                    if (knownLayout == null || version != knownLayout.version(shard))
+                        accountStores[shard] = loader.parse();
+                } catch (IOException err) {
+                    throw new UncheckedIOException(err);
+                }
+            });
+        } catch (UncheckedIOException err) {
+            throw err.getCause();
+        }
+        return accountStores;
+    }
+
+    /**
+     * Formats the changed shards in parallel.
+     *
+     * @return the contents of each changed shard, null for the other shards
+     */
+    private static byte[][] formatShards(AccountStore[] shards, boolean[] changedShards) {
+        byte[][] contents = new byte[shards.length][];
+        IntStream.range(0, shards.length).parallel().filter(shard -> changedShards[shard])
+            .forEach(shard -> contents[shard] = format(shards[shard]));
+        return contents;
+    }
+
+    private static int[] allShards(ShardLayout layout) {
+        return IntStream.range(0, layout.shardCount()).toArray();
+    }
+
+    /**
+     * @param shards the accounts in each shard
+     * @return a new store holding the accounts of every shard, which does not track changes
+     */
+    private static AccountStore union(AccountStore[] shards) {
+        if (shards.length == 1)
+            return shards[0].copy();
+
+        int size = 0;
+        for (AccountStore shard : shards) {
+            size += shard.size();
+        }
+        AccountStore accountStore = new AccountStore(size);
+        for (AccountStore shard : shards) {
+            accountStore.putAll(shard);
+        }
+        return accountStore;
+    }
+
+    /**
+     * Runs an action while holding an exclusive lock on the vault, so that it never interleaves
+     * with a read or write by another instance, or by another thread of this one.
+     *
+     * @param action the action to run
+     * @throws IOException if the vault could not be locked, or the action failed
+     */
+    synchronized void runLocked(LockedAction action) throws IOException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            action.run();
+        }
+    }
+
+    /**
+     * @return the directory containing the vault
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Opens the lock file. The vault is locked through the returned channel, and closing the
+     * channel releases the lock.
+     */
+    private FileChannel openLockChannel() throws IOException {
+        return FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Formats the accounts in a store into the contents of an accounts file. Each account name
+     * is followed by its Base64 encoded password on the next line, and pairs are separated by
+     * an empty line.
+     *
+     * @param accountStore the accounts to format
+     * @return the contents of the accounts file
+     */
+    static byte[] format(AccountStore accountStore) {
+        StringBuilder builder = new StringBuilder();
+        String newLine = System.lineSeparator();
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (int entry = 0; entry < accountStore.size(); entry++) {
+            builder.append(accountStore.accountName(entry)).append(newLine);
+            builder.append(encoder.encodeToString(accountStore.ciphertext(entry)));
+
+            // Avoid writing newlines at the end of the file
+            if (!(entry == accountStore.size() - 1)) {
+                builder.append(newLine).append(newLine);
+            }
+        }
+        return builder.toString().getBytes(CHARSET);
+    }
+
+    /**
+     * Carries a <code>GeneralSecurityException</code> out of the parallel stream that re-encodes
+     * the passwords of a batch of records, and out of the writer of the re-encoded file.
+     */
+    private static class ReencodeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReencodeException(GeneralSecurityException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized GeneralSecurityException getCause() {
+            return (GeneralSecurityException) super.getCause();
+        }
+    }
+
+    /**
+     * @param contents the contents of an accounts file
+     * @return the version of the contents, a CRC32 checksum
+     */
+    static long checksum(byte[] contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,245 @@
+package app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Loads an accounts file in parallel so that large vaults do not take one long single threaded
+ * pass to open. The file is split into chunks of roughly equal size at record boundaries (the
+ * empty line between two account name and password pairs). The chunks are read with positional
+ * reads, parsed and Base64-decoded on the common fork-join pool, and the entries are then merged
+ * in file order into an <code>AccountStore</code> that is sized for the number of records found.
+ * <p>
+ * Reading and parsing are separate steps so that a reload can compare the checksum of the file
+ * with the last version it saw, and skip parsing when nothing has changed.
+ */
+class AccountsFileLoader {
+    // Files smaller than this are read and parsed as a single chunk on the calling thread
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    // Number of bytes read at a time while searching for a record boundary
+    private static final int BOUNDARY_WINDOW_SIZE = 8192;
+
+    private final byte[][] chunks;
+
+    private AccountsFileLoader(byte[][] chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Reads an accounts file into chunks that each hold whole records.
+     *
+     * @param path the path of the accounts file
+     * @return a loader holding the contents of the file
+     * @throws IOException if the file could not be read
+     */
+    static AccountsFileLoader read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] boundaries = findChunkBoundaries(channel, size);
+            byte[][] chunks = new byte[boundaries.length - 1][];
+
+            if (chunks.length == 1) {
+                chunks[0] = readRange(channel, 0, size);
+                return new AccountsFileLoader(chunks);
+            }
+
+            try {
+                IntStream.range(0, chunks.length).parallel().forEach(i -> {
+                    try {
+                        chunks[i] = readRange(channel, boundaries[i], boundaries[i + 1]);
+                    } catch (IOException err) {
+                        throw new UncheckedIOException(err);
+                    }
+                });
+            } catch (UncheckedIOException err) {
+                throw err.getCause();
+            }
+            return new AccountsFileLoader(chunks);
+        }
+    }
+
+    /**
+     * @return the version of the file that was read, the same CRC32 checksum that
+     *         <code>AccountsFile.checksum</code> gives for the whole file
+     */
+    long checksum() {
+        CRC32 crc = new CRC32();
+        for (byte[] chunk : chunks) {
+            crc.update(chunk, 0, chunk.length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Parses the chunks in parallel and merges them in file order, so that if an account
+     * name appears more than once the last password in the file is kept.
+     *
+     * @return an <code>AccountStore</code> holding the account names and their encrypted passwords
+     * @throws IOException if a password in the file is not valid Base64
+     */
+    AccountStore parse() throws IOException {
+        List<List<Object>> parsedChunks = new ArrayList<>(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            parsedChunks.add(null);
+        }
+        try {
+            if (chunks.length == 1) {
+                parsedChunks.set(0, parseChunk(chunks[0]));
+            } else {
+                IntStream.range(0, chunks.length).parallel().forEach(i -> parsedChunks.set(i, parseChunk(chunks[i])));
+            }
+        } catch (IllegalArgumentException err) {
+            throw new IOException("Accounts file contains a password that is not valid Base64", err);
+        }
+
+        int records = 0;
+        for (List<Object> parsedChunk : parsedChunks) {
+            records += parsedChunk.size() / 2;
+        }
+
+        AccountStore accountStore = new AccountStore(records);
+        for (List<Object> parsedChunk : parsedChunks) {
+            for (int i = 0; i < parsedChunk.size(); i += 2) {
+                accountStore.put((String) parsedChunk.get(i), (byte[]) parsedChunk.get(i + 1));
+            }
+        }
+        return accountStore;
+    }
+
+    /**
+     * Parses a chunk of an accounts file. An account name is followed by its password on
+     * the next line, and pairs are separated by an empty line.
+     *
+     * @param chunk the bytes of whole records from an accounts file
+     * @return the account names and decoded encrypted passwords in the chunk, alternating
+     */
+    private static List<Object> parseChunk(byte[] chunk) {
+        String contents = new String(chunk, AccountsFile.CHARSET);
+        List<String> lines = new ArrayList<>();
+        int lineStart = 0;
+        while (lineStart < contents.length()) {
+            int lineEnd = contents.indexOf('\n', lineStart);
+            if (lineEnd == -1)
+                lineEnd = contents.length();
+            int nextLineStart = lineEnd + 1;
+            if (lineEnd > lineStart && contents.charAt(lineEnd - 1) == '\r')
+                lineEnd--;
+            lines.add(contents.substring(lineStart, lineEnd));
+            lineStart = nextLineStart;
+        }
+
+        Base64.Decoder decoder = Base64.getDecoder();
+        List<Object> pairs = new ArrayList<>();
+        int i = 0;
+        while (i < lines.size()) {
+            if (lines.get(i).isEmpty()) {
+                i++;
+                continue;
+            }
+            pairs.add(lines.get(i));
+            pairs.add(decoder.decode(i + 1 < lines.size() ? lines.get(i + 1) : ""));
+            i += 2;
+        }
+        return pairs;
+    }
+
+    /**
+     * Splits a file into roughly equal chunks, one or more for each thread in the common
+     * pool, moving each split forward to the next record boundary.
+     *
+     * @param channel the channel to read the file from
+     * @param size the size of the file
+     * @return the offsets the chunks start at, followed by the size of the file
+     * @throws IOException if the file could not be read
+     */
+    private static long[] findChunkBoundaries(FileChannel channel, long size) throws IOException {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int chunkCount = (int) Math.max(1, Math.min(parallelism * 4L, size / MIN_CHUNK_SIZE));
+        // Keep every chunk small enough to fit in an array
+        chunkCount = (int) Math.max(chunkCount, size / (Integer.MAX_VALUE / 2) + 1);
+
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        for (int i = 1; i < chunkCount; i++) {
+            long from = Math.max(size / chunkCount * i, boundaries.get(boundaries.size() - 1));
+            long boundary = findRecordBoundary(channel, from, size);
+            if (boundary >= size)
+                break;
+            if (boundary > boundaries.get(boundaries.size() - 1))
+                boundaries.add(boundary);
+        }
+        boundaries.add(size);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first record boundary at or after an offset. A record boundary is the offset
+     * just after an empty line, which always starts an account name.
+     *
+     * @param channel the channel to read the file from
+     * @param from the offset to start searching at
+     * @param size the size of the file
+     * @return the offset of the boundary, or the size of the file if there is none
+     * @throws IOException if the file could not be read
+     */
+    private static long findRecordBoundary(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(BOUNDARY_WINDOW_SIZE);
+        // Whether the previous byte ended a line, and whether a '\r' has been seen since
+        boolean afterNewLine = false;
+        long position = from;
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read <= 0)
+                break;
+            for (int i = 0; i < read; i++) {
+                byte b = window.get(i);
+                if (b == '\n') {
+                    if (afterNewLine)
+                        return position + i + 1;
+                    afterNewLine = true;
+                } else if (b != '\r') {
+                    afterNewLine = false;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Reads part of a file.
+     *
+     * @param channel the channel to read the file from
+     * @param start the offset of the first byte to read
+     * @param end the offset just after the last byte to read
+     * @return the bytes read
+     * @throws IOException if the file could not be read, or is shorter than <code>end</code>
+     */
+    static byte[] readRange(FileChannel channel, long start, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, start + buffer.position());
+            if (read < 0)
+                throw new EOFException("File changed size while it was being read");
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the accounts.txt file, or the manifest of a sharded vault, and the other files of the
+ * vault such as accounts-meta.txt, for changes made by another instance of the application or by
+ * a sync tool, and runs a callback when any of them changes. A
+ * single write usually raises several events, so events that arrive within a short time of each
+ * other only run the callback once. The watch runs on a daemon thread so that it never keeps the
+ * application open.
+ */
+public class AccountsFileWatcher implements Runnable {
+    // Time to wait for further events before running the callback
+    private final long DEBOUNCE_MILLIS = 200;
+
+    private final Set<Path> watchedFileNames = new HashSet<>();
+    private final WatchService watchService;
+    private final Runnable onChange;
+    private final Thread thread;
+
+    /**
+     * Registers a watch on the directory containing the accounts files.
+     *
+     * @param watchedPaths the paths of the files to watch, which must be in the same directory
+     * @param onChange the callback to run, on the watching thread, when a file changes
+     * @throws IOException if the watch could not be registered
+     */
+    public AccountsFileWatcher(List<Path> watchedPaths, Runnable onChange) throws IOException {
+        Path directory = watchedPaths.get(0).toAbsolutePath().getParent();
+        for (Path watchedPath : watchedPaths) {
+            watchedFileNames.add(watchedPath.getFileName());
+        }
+        this.onChange = onChange;
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this, "accounts-file-watcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching the accounts files.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops watching the accounts files. The callback will not run after this returns
+     * unless it was already running.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException err) {
+            // Nothing is left to clean up if the watch service failed to close
+        }
+    }
+
+    /**
+     * Waits for events on the watched directory and runs the callback whenever
+     * a watched file is changed, until the watcher is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean accountsFileChanged = false;
+
+                // Collect events until the directory has been quiet for the debounce time
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || watchedFileNames.contains(event.context()))
+                            accountsFileChanged = true;
+                    }
+                    key.reset();
+                    key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if (accountsFileChanged)
+                    onChange.run();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException err) {
+            // The watcher was closed
+        }
+    }
+}
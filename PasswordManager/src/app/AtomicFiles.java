@@ -0,0 +1,125 @@
+package app;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes files so that a crash or power cut part way through leaves either the old contents or
+ * the new contents, never a mix of the two. The new contents are written to a temporary file in
+ * the same directory, flushed to the disk, and then renamed over the file, which replaces it in a
+ * single step.
+ */
+final class AtomicFiles {
+    // The coarsest resolution of file modified times in common use, two seconds on FAT
+    private static final long TIMESTAMP_RESOLUTION_MILLIS = 2000;
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Writes the new contents of a file to a stream, for contents too large to hold in memory.
+     */
+    interface ContentsWriter {
+        /**
+         * @param out the stream to write the new contents to, which is buffered
+         * @return true to replace the file with the contents written, false to leave it unchanged
+         * @throws IOException if the contents could not be written
+         */
+        boolean writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Replaces the contents of a file atomically, creating it if it does not exist.
+     *
+     * @param path the file to write
+     * @param contents the new contents of the file
+     * @throws IOException if the file could not be written, in which case it is left unchanged
+     */
+    static void write(Path path, byte[] contents) throws IOException {
+        write(path, out -> {
+            out.write(contents);
+            return true;
+        });
+    }
+
+    /**
+     * Replaces the contents of a file atomically with contents written to a stream, creating it
+     * if it does not exist. Only the buffer of the stream is held in memory.
+     *
+     * @param path the file to write
+     * @param writer writes the new contents of the file
+     * @return true if the file was replaced, false if the writer left it unchanged
+     * @throws IOException if the file could not be written, in which case it is left unchanged
+     */
+    static boolean write(Path path, ContentsWriter writer) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path tempPath = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                if (!writer.writeTo(out))
+                    return false;
+                out.flush();
+                channel.force(true);
+            }
+
+            try {
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException err) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        syncDirectory(directory);
+        return true;
+    }
+
+    /**
+     * Identifies the version of a file, so that a writer can tell whether it has been written
+     * or replaced since it last read it without reading it again. The stamp is only a hint: a
+     * file written twice within the resolution of its modified time can keep the same size and
+     * modified time, and some file systems have no file key. So a file modified that recently,
+     * or with a modified time in the future, gets no stamp, and must be read to tell whether it
+     * changed.
+     *
+     * @param path the file
+     * @return the file key, size and modified time of the file, or null if it does not exist or
+     *         was modified too recently to be told apart from a later write
+     * @throws IOException if the attributes of the file could not be read
+     */
+    static List<Object> stamp(Path path) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.lastModifiedTime().toMillis() > System.currentTimeMillis() - TIMESTAMP_RESOLUTION_MILLIS)
+                return null;
+            return Arrays.asList(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime());
+        } catch (NoSuchFileException err) {
+            return null;
+        }
+    }
+
+    /**
+     * Flushes a directory to the disk so that a rename into it survives a crash. Directories
+     * cannot be opened on every platform (Windows for one), where this does nothing.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException err) {
+            return;
+        }
+    }
+}
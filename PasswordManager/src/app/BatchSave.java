@@ -0,0 +1,140 @@
+package app;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Generates, encrypts and adds passwords for many accounts in one operation, for provisioning
+ * thousands of accounts at once instead of saving them one at a time from the generator. The
+ * key is derived once, the account names are checked against the vault in a single pass, and
+ * the passwords are generated and encrypted in parallel. Nothing is added unless every password
+ * was encrypted, so the caller can write the vault once at the end.
+ */
+class BatchSave {
+    // Each thread generates with its own random generator, SecureRandom is slow when shared
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    /**
+     * The accounts added by a batch save, and the account names that were skipped.
+     */
+    static class Result {
+        private final List<String> saved = new ArrayList<>();
+        private final List<String> skipped = new ArrayList<>();
+
+        /**
+         * @return the accounts that were added, in the order they were given
+         */
+        List<String> getSaved() {
+            return Collections.unmodifiableList(saved);
+        }
+
+        /**
+         * @return the account names that were skipped because they were already saved or
+         *         were given more than once
+         */
+        List<String> getSkipped() {
+            return Collections.unmodifiableList(skipped);
+        }
+    }
+
+    private BatchSave() {
+    }
+
+    /**
+     * Splits text into account names, one per line. Surrounding white space and blank lines
+     * are ignored.
+     *
+     * @param text the account names, one per line
+     * @return the account names
+     */
+    static List<String> parseAccountNames(String text) {
+        List<String> accountNames = new ArrayList<>();
+        for (String line : text.split("\\R")) {
+            if (!line.isBlank())
+                accountNames.add(line.trim());
+        }
+        return accountNames;
+    }
+
+    /**
+     * Generates a password for each new account name, encrypts it and adds it to the store and
+     * the index. Names already in the store, and repeats of a name earlier in the list, are skipped.
+     * The store and index are left unchanged if any password could not be encrypted.
+     *
+     * @param accountNames the account names to add
+     * @param passwordLength the length of the generated passwords
+     * @param includeUppercase whether the passwords include uppercase characters
+     * @param includeNumbers whether the passwords include numbers
+     * @param includeSymbols whether the passwords include symbols
+     * @param tags the tags given to every added account
+     * @param accountStore the store the accounts are added to
+     * @param accountIndex the index the metadata of the accounts is added to
+     * @return the accounts added and the names skipped
+     * @throws GeneralSecurityException if the key could not be derived or a password could not be encrypted
+     */
+    static Result save(List<String> accountNames, int passwordLength, boolean includeUppercase, boolean includeNumbers,
+        boolean includeSymbols, Set<String> tags, AccountStore accountStore, AccountIndex accountIndex)
+        throws GeneralSecurityException {
+        // Check every name against the vault and the rest of the batch in one pass
+        Result result = new Result();
+        Set<String> batchNames = new HashSet<>();
+        for (String accountName : accountNames) {
+            if (accountStore.containsAccount(accountName) || !batchNames.add(accountName)) {
+                result.skipped.add(accountName);
+            } else {
+                result.saved.add(accountName);
+            }
+        }
+
+        SecretKey secretKey = PasswordManager.getSecretKey();
+        byte[][] ciphertexts = new byte[result.saved.size()][];
+        try {
+            IntStream.range(0, ciphertexts.length).parallel().forEach(i -> {
+                char[] password = PasswordGenerator.generatePassword(passwordLength, includeUppercase, includeNumbers,
+                    includeSymbols, RANDOM.get());
+                try {
+                    ciphertexts[i] = PasswordManager.encryptPassword(password, secretKey);
+                } catch (GeneralSecurityException err) {
+                    throw new EncryptionException(err);
+                } finally {
+                    Secrets.wipe(password);
+                }
+            });
+        } catch (EncryptionException err) {
+            throw err.getCause();
+        }
+
+        // The store and index are not thread safe, so they are filled in afterwards
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ciphertexts.length; i++) {
+            accountStore.put(result.saved.get(i), ciphertexts[i]);
+            accountIndex.put(result.saved.get(i), AccountMetadata.created("", "", tags, now));
+        }
+        return result;
+    }
+
+    /**
+     * Carries a <code>GeneralSecurityException</code> out of the parallel stream that encrypts
+     * the passwords.
+     */
+    private static class EncryptionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EncryptionException(GeneralSecurityException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized GeneralSecurityException getCause() {
+            return (GeneralSecurityException) super.getCause();
+        }
+    }
+}
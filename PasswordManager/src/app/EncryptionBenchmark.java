@@ -0,0 +1,133 @@
+package app;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Measures how fast vault entries are encrypted and decrypted with AES-GCM
+ * (<code>PasswordManager.encryptPassword</code>) compared with the legacy AES in ECB mode
+ * (<code>PasswordManager.encryptLegacyPassword</code>), on one thread and on every core. The
+ * passwords are generated from a fixed seed, and each measurement is preceded by a warm up
+ * round, so runs on the same machine can be compared.
+ * <p>
+ * Run with
+ * <code>java -cp "Password Generator and Manager.jar" app.EncryptionBenchmark [passwords] [length]</code>.
+ */
+public class EncryptionBenchmark {
+    private static final int DEFAULT_PASSWORDS = 200000;
+    private static final int DEFAULT_LENGTH = 16;
+    private static final long SEED = 42;
+
+    /**
+     * Encrypts or decrypts the entry at an index.
+     */
+    private interface Step {
+        void run(int index) throws GeneralSecurityException;
+    }
+
+    /**
+     * Runs the benchmark for the number and length of passwords given, or the defaults, and
+     * prints a report.
+     *
+     * @param args the number of passwords, and their length
+     */
+    public static void main(String[] args) {
+        int passwordCount = DEFAULT_PASSWORDS;
+        int passwordLength = DEFAULT_LENGTH;
+        try {
+            if (args.length > 0)
+                passwordCount = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                passwordLength = Integer.parseInt(args[1]);
+        } catch (NumberFormatException err) {
+            System.err.println("Usage: EncryptionBenchmark [passwords] [length]");
+            System.exit(2);
+        }
+
+        try {
+            run(passwordCount, passwordLength);
+        } catch (GeneralSecurityException err) {
+            System.err.println("Benchmark failed: " + err);
+            System.exit(1);
+        }
+    }
+
+    private static void run(int passwordCount, int passwordLength) throws GeneralSecurityException {
+        Random random = new Random(SEED);
+        char[][] passwords = new char[passwordCount][];
+        for (int i = 0; i < passwordCount; i++) {
+            passwords[i] = PasswordGenerator.generatePassword(passwordLength, true, true, true, random);
+        }
+        SecretKey secretKey = PasswordManager.getSecretKey();
+        byte[][] legacyEntries = new byte[passwordCount][];
+        byte[][] gcmEntries = new byte[passwordCount][];
+
+        System.out.printf("%d passwords of length %d, %d threads%n", passwordCount, passwordLength,
+            Runtime.getRuntime().availableProcessors());
+        for (boolean parallel : new boolean[] {false, true}) {
+            String threads = parallel ? "parallel" : "1 thread";
+            measure("legacy encrypt, " + threads, passwordCount, parallel,
+                i -> legacyEntries[i] = PasswordManager.encryptLegacyPassword(passwords[i], secretKey));
+            measure("GCM encrypt,    " + threads, passwordCount, parallel,
+                i -> gcmEntries[i] = PasswordManager.encryptPassword(passwords[i], secretKey));
+            measure("legacy decrypt, " + threads, passwordCount, parallel,
+                i -> Secrets.wipe(PasswordManager.decryptPassword(legacyEntries[i], secretKey)));
+            measure("GCM decrypt,    " + threads, passwordCount, parallel,
+                i -> Secrets.wipe(PasswordManager.decryptPassword(gcmEntries[i], secretKey)));
+        }
+
+        if (passwordCount > 0)
+            System.out.printf("entry size: legacy %d bytes, GCM %d bytes%n", legacyEntries[0].length,
+                gcmEntries[0].length);
+        for (char[] password : passwords) {
+            Secrets.wipe(password);
+        }
+    }
+
+    /**
+     * Runs a step for every entry once to warm up, then again while timing it, and prints the rate.
+     */
+    private static void measure(String name, int passwordCount, boolean parallel, Step step)
+        throws GeneralSecurityException {
+        runAll(passwordCount, parallel, step);
+        long startNanos = System.nanoTime();
+        runAll(passwordCount, parallel, step);
+        long nanos = System.nanoTime() - startNanos;
+        System.out.printf("%s: %,.0f ops/s, %,.0f ns/op%n", name, passwordCount / (nanos / 1e9),
+            (double) nanos / Math.max(1, passwordCount));
+    }
+
+    private static void runAll(int passwordCount, boolean parallel, Step step) throws GeneralSecurityException {
+        IntStream indexes = IntStream.range(0, passwordCount);
+        try {
+            (parallel ? indexes.parallel() : indexes).forEach(i -> {
+                try {
+                    step.run(i);
+                } catch (GeneralSecurityException err) {
+                    throw new StepException(err);
+                }
+            });
+        } catch (StepException err) {
+            throw err.getCause();
+        }
+    }
+
+    /**
+     * Carries a <code>GeneralSecurityException</code> out of the stream that runs a step.
+     */
+    private static class StepException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StepException(GeneralSecurityException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized GeneralSecurityException getCause() {
+            return (GeneralSecurityException) super.getCause();
+        }
+    }
+}
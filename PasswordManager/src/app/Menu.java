@@ -116,6 +116,7 @@ public class Menu extends JFrame {
         // Display the window
         menu.pack();
         menu.setVisible(true);
+        VaultMetrics.recordStartup(VaultMetrics.Operation.STARTUP_WINDOW);
     }
 
     /**
@@ -0,0 +1,141 @@
+package app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A hash tree over the accounts in a store, used to find the accounts that differ between two
+ * vaults by comparing a handful of hashes instead of every account.
+ * <p>
+ * Each account is placed in a leaf by the hash of its name, so an account lands in the same leaf
+ * in every vault no matter which other accounts are present. A leaf's hash covers its accounts
+ * sorted by name, and each parent's hash covers its two children. Two trees with the same number
+ * of leaves are compared from the root down, only following children whose hashes differ, so a
+ * few differing accounts are found in about log(leaves) comparisons each.
+ */
+class MerkleTree {
+    // Aim for this many accounts in each leaf
+    private static final int ACCOUNTS_PER_LEAF = 8;
+    private static final int MAX_LEAVES = 1 << 16;
+
+    private final int leafCount;
+    // Node hashes in heap order, the root is node 1 and the children of node i are 2i and 2i + 1
+    private final byte[][] hashes;
+    private final String[][] leafAccountNames;
+
+    /**
+     * Builds the tree over the accounts in a store.
+     *
+     * @param accountStore the accounts
+     * @param leafCount the number of leaves, from <code>leafCountFor</code>, which must be the
+     *                  same for every tree that will be compared
+     */
+    MerkleTree(AccountStore accountStore, int leafCount) {
+        this.leafCount = leafCount;
+        hashes = new byte[leafCount * 2][];
+
+        // Bucket the account names into their leaves, each leaf is sorted when it is hashed
+        List<List<String>> buckets = new ArrayList<>(leafCount);
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (String accountName : accountStore.accountNames()) {
+            buckets.get(leafOf(accountName)).add(accountName);
+        }
+        leafAccountNames = new String[leafCount][];
+
+        // Sorting and hashing the leaves is most of the work, and each leaf is independent
+        IntStream.range(0, leafCount).parallel().forEach(leaf -> {
+            leafAccountNames[leaf] = buckets.get(leaf).toArray(new String[0]);
+            Arrays.sort(leafAccountNames[leaf]);
+            MessageDigest digest = newDigest();
+            for (String accountName : leafAccountNames[leaf]) {
+                byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+                byte[] ciphertext = accountStore.get(accountName);
+                digest.update(ByteBuffer.allocate(8).putInt(name.length).putInt(ciphertext.length).array());
+                digest.update(name);
+                digest.update(ciphertext);
+            }
+            hashes[leafCount + leaf] = digest.digest();
+        });
+        for (int node = leafCount - 1; node >= 1; node--) {
+            MessageDigest digest = newDigest();
+            digest.update(hashes[2 * node]);
+            digest.update(hashes[2 * node + 1]);
+            hashes[node] = digest.digest();
+        }
+    }
+
+    /**
+     * @param accountCounts the number of accounts in each vault being compared
+     * @return the number of leaves to use for trees over vaults of these sizes, a power of two
+     */
+    static int leafCountFor(int... accountCounts) {
+        int maxAccounts = 0;
+        for (int accountCount : accountCounts) {
+            maxAccounts = Math.max(maxAccounts, accountCount);
+        }
+        int leaves = Integer.highestOneBit(Math.max(1, maxAccounts / ACCOUNTS_PER_LEAF));
+        return Math.min(leaves, MAX_LEAVES);
+    }
+
+    /**
+     * @return the hash of the whole tree, equal for two trees exactly when their accounts are
+     */
+    byte[] rootHash() {
+        return hashes[1].clone();
+    }
+
+    /**
+     * Finds the leaves whose accounts differ between this tree and another, descending only
+     * into subtrees whose hashes differ.
+     *
+     * @param other a tree with the same number of leaves
+     * @param comparisons counts the hash comparisons made, in its first element
+     * @return the account names in the differing leaves of either tree, which include every
+     *         account that was added, removed or changed
+     */
+    List<String> differingAccounts(MerkleTree other, long[] comparisons) {
+        if (other.leafCount != leafCount)
+            throw new IllegalArgumentException("Trees have " + leafCount + " and " + other.leafCount + " leaves");
+
+        List<String> accountNames = new ArrayList<>();
+        collectDiffering(other, 1, accountNames, comparisons);
+        return accountNames;
+    }
+
+    private void collectDiffering(MerkleTree other, int node, List<String> accountNames, long[] comparisons) {
+        comparisons[0]++;
+        if (Arrays.equals(hashes[node], other.hashes[node]))
+            return;
+
+        if (node >= leafCount) {
+            accountNames.addAll(Arrays.asList(leafAccountNames[node - leafCount]));
+            accountNames.addAll(Arrays.asList(other.leafAccountNames[node - leafCount]));
+            return;
+        }
+        collectDiffering(other, 2 * node, accountNames, comparisons);
+        collectDiffering(other, 2 * node + 1, accountNames, comparisons);
+    }
+
+    private int leafOf(String accountName) {
+        // String.hashCode is specified exactly, so every machine puts an account in the same leaf
+        int hash = accountName.hashCode() * 0x9E3779B9;
+        return (hash >>> 16) & (leafCount - 1);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException err) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(err);
+        }
+    }
+}
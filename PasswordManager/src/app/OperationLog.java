@@ -0,0 +1,594 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The changes made to accounts from the manager and the generator, so that they can be undone and
+ * redone. Each add, remove or restore is recorded as an <code>Operation</code> holding the
+ * encrypted password of the account before and after the change. Undoing applies the inverse
+ * operation to the accounts it changed, so its cost does not grow with the vault: the store is
+ * changed in place, the write only rewrites the shards holding the accounts, which
+ * <code>ShardLayout</code> keeps to a few thousand accounts each, and the manifest listing them,
+ * and only their lines are appended to the metadata and history files.
+ * <p>
+ * The log is kept in accounts-undo.txt next to accounts.txt, so changes can still be undone after
+ * the application is restarted. Each change appends one line, tab separated:
+ * <pre>
+ * do   account name   password before   password after   metadata
+ * undo
+ * redo
+ * </pre>
+ * where the passwords are Base64 encoded, or <code>-</code> if the account did not exist, and the
+ * metadata is in the format of accounts-meta.txt. A change to several accounts at once, such as a
+ * batch saved from the generator, is written as a line <code>group   count</code> followed by a
+ * do line for each account, and is undone as a whole. Reading the file replays the lines, and the
+ * file is rewritten with only the operations still kept once it holds twice as many lines.
+ * <p>
+ * The log is shared by every instance of the application using the vault. The file is only read
+ * and written while holding the vault's exclusive lock, and before each change the log is read
+ * again if another instance has written it since, so no instance drops another's lines.
+ * <p>
+ * The number of operations kept is set by the <code>passwordmanager.undo.limit</code> system
+ * property, 100 by default, where 0 turns undo off, and the number of account changes they hold
+ * by <code>passwordmanager.undo.change.limit</code>, 10000 by default. Undo and redo together
+ * never hold more, so a large batch drops the oldest operations, and an operation changing more
+ * accounts than the limit cannot be undone and clears the log. The file is bounded in the same
+ * way, as it is rewritten once it holds twice the lines of the operations kept.
+ */
+class OperationLog {
+    static final String FILE_NAME = "accounts-undo.txt";
+    static final String LIMIT_PROPERTY = "passwordmanager.undo.limit";
+    static final String CHANGE_LIMIT_PROPERTY = "passwordmanager.undo.change.limit";
+
+    private static final int LIMIT = Math.max(0, Integer.getInteger(LIMIT_PROPERTY, 100));
+    private static final int CHANGE_LIMIT = Math.max(1, Integer.getInteger(CHANGE_LIMIT_PROPERTY, 10000));
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String NO_PASSWORD = "-";
+    private static final String DO = "do";
+    private static final String GROUP = "group";
+    private static final String UNDO = "undo";
+    private static final String REDO = "redo";
+
+    private final AccountsFile accountsFile;
+    private final Path path;
+    // The last element of each is the next operation to undo or redo
+    private final Deque<Operation> undoOperations = new ArrayDeque<>();
+    private final Deque<Operation> redoOperations = new ArrayDeque<>();
+    // The number of lines in the file, counting each change of a group, and the number it held
+    // when it was last rewritten
+    private int fileLines = 0;
+    private int compactedLines = 0;
+    // The version of the file when it was last read or written by this log
+    private List<Object> fileStamp;
+
+    /**
+     * A change to one account, from the encrypted password it had before to the one it had after.
+     */
+    private static class Change {
+        private final String accountName;
+        private final byte[] before;
+        private final byte[] after;
+        // The metadata of the account while it exists, restored when the change re-creates it
+        private final AccountMetadata metadata;
+
+        Change(String accountName, byte[] before, byte[] after, AccountMetadata metadata) {
+            this.accountName = accountName;
+            this.before = before;
+            this.after = after;
+            this.metadata = metadata;
+        }
+
+        Change inverse() {
+            return new Change(accountName, after, before, metadata);
+        }
+
+        boolean appliesTo(AccountStore accountStore) {
+            return Arrays.equals(accountStore.get(accountName), before);
+        }
+
+        void apply(AccountStore accountStore, AccountIndex accountIndex, long now) {
+            if (after == null) {
+                accountStore.remove(accountName);
+                accountIndex.remove(accountName);
+                return;
+            }
+
+            accountStore.put(accountName, after);
+            if (before == null && metadata != null) {
+                accountIndex.put(accountName, metadata);
+            } else {
+                accountIndex.markModified(accountName, now);
+            }
+        }
+
+        String kind() {
+            return before == null ? "add" : after == null ? "remove" : "change";
+        }
+    }
+
+    /**
+     * A change made by one action of the user, to one account or to every account of a batch,
+     * which is undone and redone as a whole.
+     */
+    static class Operation {
+        private final List<Change> changes;
+
+        /**
+         * @param accountName the account that was changed
+         * @param before the encrypted password before the change, or null if the account was added
+         * @param after the encrypted password after the change, or null if the account was removed
+         * @param metadata the metadata of the account, or null if unknown
+         */
+        Operation(String accountName, byte[] before, byte[] after, AccountMetadata metadata) {
+            this(Collections.singletonList(new Change(accountName, before, after, metadata)));
+        }
+
+        private Operation(List<Change> changes) {
+            this.changes = changes;
+        }
+
+        /**
+         * @param accountNames the accounts that were added, which must already be in the store
+         *                     and the index
+         * @param accountStore the live store of account names and passwords
+         * @param accountIndex the live metadata of the accounts
+         * @return the operation adding the accounts
+         */
+        static Operation added(List<String> accountNames, AccountStore accountStore, AccountIndex accountIndex) {
+            List<Change> changes = new ArrayList<>(accountNames.size());
+            for (String accountName : accountNames) {
+                changes.add(new Change(accountName, null, accountStore.get(accountName), accountIndex.get(accountName)));
+            }
+            return new Operation(changes);
+        }
+
+        /**
+         * @return the accounts that were changed
+         */
+        List<String> getAccountNames() {
+            List<String> accountNames = new ArrayList<>(changes.size());
+            for (Change change : changes) {
+                accountNames.add(change.accountName);
+            }
+            return accountNames;
+        }
+
+        /**
+         * @return the operation that reverses this one
+         */
+        Operation inverse() {
+            List<Change> inverse = new ArrayList<>(changes.size());
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                inverse.add(changes.get(i).inverse());
+            }
+            return new Operation(inverse);
+        }
+
+        /**
+         * @param accountStore the live store of account names and passwords
+         * @return true if every account is as this operation left it before, so the operation can
+         *         be applied without overwriting a later change
+         */
+        boolean appliesTo(AccountStore accountStore) {
+            for (Change change : changes) {
+                if (!change.appliesTo(accountStore))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Applies the changes to the store and the metadata of the accounts. An account that is
+         * added back gets its recorded metadata, and a changed password marks it modified.
+         *
+         * @param accountStore the live store of account names and passwords
+         * @param accountIndex the live metadata of the accounts
+         * @param now the current time
+         */
+        void apply(AccountStore accountStore, AccountIndex accountIndex, long now) {
+            for (Change change : changes) {
+                change.apply(accountStore, accountIndex, now);
+            }
+        }
+
+        /**
+         * @return a short description of the change, such as "remove of email" or "add of 20
+         *         accounts"
+         */
+        String describe() {
+            if (changes.size() == 1)
+                return changes.get(0).kind() + " of " + changes.get(0).accountName;
+
+            String kind = changes.get(0).kind();
+            for (Change change : changes) {
+                if (!change.kind().equals(kind))
+                    kind = "change";
+            }
+            return kind + " of " + changes.size() + " accounts";
+        }
+    }
+
+    /**
+     * Creates an empty <code>OperationLog</code>, call <code>read</code> to load the operations
+     * saved in the vault.
+     *
+     * @param accountsFile the vault, whose lock is held while the log is read or written
+     */
+    OperationLog(AccountsFile accountsFile) {
+        this.accountsFile = accountsFile;
+        path = accountsFile.getDirectory().resolve(FILE_NAME);
+    }
+
+    /**
+     * @return the path of accounts-undo.txt
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Replaces the operations in the log with those saved in accounts-undo.txt. Damaged lines,
+     * for example from a write that was cut short, are skipped.
+     *
+     * @throws IOException if the file could not be locked or read, in which case the log is left empty
+     */
+    void read() throws IOException {
+        accountsFile.runLocked(this::readFile);
+    }
+
+    /**
+     * Reads the log again if another instance has written it since it was last read or written.
+     *
+     * @throws IOException if the file could not be locked or read
+     */
+    void refresh() throws IOException {
+        accountsFile.runLocked(this::refreshFile);
+    }
+
+    private void refreshFile() throws IOException {
+        // A file without a stamp may have been written since, so is always read again
+        List<Object> stamp = AtomicFiles.stamp(path);
+        if (stamp == null || !stamp.equals(fileStamp))
+            readFile();
+    }
+
+    private void readFile() throws IOException {
+        undoOperations.clear();
+        redoOperations.clear();
+        fileLines = 0;
+        compactedLines = 0;
+        fileStamp = AtomicFiles.stamp(path);
+        if (!Files.exists(path))
+            return;
+
+        Base64.Decoder decoder = Base64.getDecoder();
+        String[] lines = new String(Files.readAllBytes(path), AccountsFile.CHARSET).split("\\R");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].isEmpty())
+                continue;
+
+            fileLines++;
+            String[] fields = lines[i].split(FIELD_SEPARATOR, -1);
+            if (fields[0].equals(UNDO)) {
+                move(undoOperations, redoOperations);
+            } else if (fields[0].equals(REDO)) {
+                move(redoOperations, undoOperations);
+            } else if (fields[0].equals(DO)) {
+                Change change = parseChange(fields, decoder);
+                if (change != null)
+                    push(new Operation(Collections.singletonList(change)));
+            } else if (fields[0].equals(GROUP) && fields.length == 2) {
+                int count;
+                try {
+                    count = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException err) {
+                    continue;
+                }
+
+                // A group cut short by a damaged line is skipped as a whole, and a group too
+                // large to keep is skipped without holding its changes
+                List<Change> changes = new ArrayList<>();
+                int read = 0;
+                while (read < count && i + 1 < lines.length) {
+                    Change change = parseChange(lines[i + 1].split(FIELD_SEPARATOR, -1), decoder);
+                    if (change == null)
+                        break;
+                    if (count <= CHANGE_LIMIT)
+                        changes.add(change);
+                    read++;
+                    i++;
+                }
+                fileLines += read;
+                if (count > CHANGE_LIMIT && read == count) {
+                    undoOperations.clear();
+                    redoOperations.clear();
+                } else if (count > 0 && changes.size() == count) {
+                    push(new Operation(changes));
+                }
+            }
+        }
+
+        // A file written with larger limits, or by an older version, is rewritten straight away
+        compactedLines = keptLines();
+        if (LIMIT > 0 && fileLines > 2 * Math.max(LIMIT, compactedLines))
+            compact();
+    }
+
+    /**
+     * Records a change, which becomes the next to be undone and clears the changes that could be
+     * redone. The oldest changes are dropped once the log is full, and a change to more accounts
+     * than the log can hold clears it.
+     *
+     * @param operation the change that was made
+     * @throws IOException if the log could not be locked, read or saved, in which case the
+     *                     change may not be recorded
+     */
+    void record(Operation operation) throws IOException {
+        if (LIMIT == 0)
+            return;
+
+        accountsFile.runLocked(() -> {
+            refreshFile();
+            push(operation);
+            if (undoOperations.peekLast() != operation) {
+                compact();
+                return;
+            }
+            StringBuilder builder = new StringBuilder();
+            int lines = appendLines(builder, operation);
+            append(builder.toString(), lines);
+        });
+    }
+
+    /**
+     * @return the next change to undo, or null if there is none
+     */
+    Operation peekUndo() {
+        return undoOperations.peekLast();
+    }
+
+    /**
+     * @return the next change to redo, or null if there is none
+     */
+    Operation peekRedo() {
+        return redoOperations.peekLast();
+    }
+
+    /**
+     * Records that the change returned by <code>peekUndo</code> was undone, so it can be redone.
+     * Nothing is recorded if another instance has undone it first.
+     *
+     * @param operation the change that was undone
+     * @throws IOException if the log could not be locked, read or saved
+     */
+    void undone(Operation operation) throws IOException {
+        accountsFile.runLocked(() -> {
+            refreshFile();
+            if (!isNext(undoOperations, operation))
+                return;
+            move(undoOperations, redoOperations);
+            append(UNDO + System.lineSeparator(), 1);
+        });
+    }
+
+    /**
+     * Records that the change returned by <code>peekRedo</code> was redone, so it can be undone
+     * again. Nothing is recorded if another instance has redone it first.
+     *
+     * @param operation the change that was redone
+     * @throws IOException if the log could not be locked, read or saved
+     */
+    void redone(Operation operation) throws IOException {
+        accountsFile.runLocked(() -> {
+            refreshFile();
+            if (!isNext(redoOperations, operation))
+                return;
+            move(redoOperations, undoOperations);
+            append(REDO + System.lineSeparator(), 1);
+        });
+    }
+
+    /**
+     * Drops the next change to undo or redo, when it can no longer be applied because the account
+     * was changed since, for example by another instance or a sync.
+     *
+     * @param undo true to drop the next change to undo, false for the next change to redo
+     * @param operation the change to drop
+     * @throws IOException if the log could not be locked, read or saved
+     */
+    void discard(boolean undo, Operation operation) throws IOException {
+        accountsFile.runLocked(() -> {
+            refreshFile();
+            Deque<Operation> operations = undo ? undoOperations : redoOperations;
+            if (!isNext(operations, operation))
+                return;
+            operations.pollLast();
+            compact();
+        });
+    }
+
+    /**
+     * Clears the log if any of its changes holds a password matching <code>stale</code>, for
+     * example one encrypted with a cipher the vault has been migrated from. Once the accounts have
+     * been re-encrypted such changes no longer apply to them, and would otherwise keep the old
+     * encrypted passwords in accounts-undo.txt.
+     *
+     * @param stale tells whether an encrypted password should no longer be kept
+     * @return the number of operations that were cleared
+     * @throws IOException if the log could not be locked, read or saved
+     */
+    int clearIf(Predicate<byte[]> stale) throws IOException {
+        int[] cleared = new int[1];
+        accountsFile.runLocked(() -> {
+            readFile();
+            if (!holdsAny(undoOperations, stale) && !holdsAny(redoOperations, stale))
+                return;
+            cleared[0] = undoOperations.size() + redoOperations.size();
+            undoOperations.clear();
+            redoOperations.clear();
+            compact();
+        });
+        return cleared[0];
+    }
+
+    private static boolean holdsAny(Deque<Operation> operations, Predicate<byte[]> stale) {
+        for (Operation operation : operations) {
+            for (Change change : operation.changes) {
+                if ((change.before != null && stale.test(change.before))
+                    || (change.after != null && stale.test(change.after)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if <code>operation</code> is the last of <code>operations</code>, or the same
+     *         change read back from the file
+     */
+    private static boolean isNext(Deque<Operation> operations, Operation operation) {
+        Operation next = operations.peekLast();
+        if (next == operation)
+            return true;
+        if (next == null)
+            return false;
+
+        StringBuilder nextLine = new StringBuilder();
+        appendLines(nextLine, next);
+        StringBuilder line = new StringBuilder();
+        appendLines(line, operation);
+        return nextLine.toString().equals(line.toString());
+    }
+
+    private void push(Operation operation) {
+        undoOperations.addLast(operation);
+        redoOperations.clear();
+        int changes = 0;
+        for (Operation kept : undoOperations) {
+            changes += kept.changes.size();
+        }
+        while (undoOperations.size() > LIMIT || changes > CHANGE_LIMIT) {
+            changes -= undoOperations.removeFirst().changes.size();
+        }
+    }
+
+    /**
+     * @return the number of lines the operations kept take when the file is rewritten
+     */
+    private int keptLines() {
+        int lines = redoOperations.size();
+        for (Operation operation : undoOperations) {
+            lines += operation.changes.size() > 1 ? operation.changes.size() + 1 : 1;
+        }
+        for (Operation operation : redoOperations) {
+            lines += operation.changes.size() > 1 ? operation.changes.size() + 1 : 1;
+        }
+        return lines;
+    }
+
+    private static void move(Deque<Operation> from, Deque<Operation> to) {
+        Operation operation = from.pollLast();
+        if (operation != null)
+            to.addLast(operation);
+    }
+
+    /**
+     * Appends lines to the file, and rewrites it with only the operations still kept once it holds
+     * twice the lines it was last rewritten with. Must be called while holding the lock.
+     *
+     * @param lines the lines to append
+     * @param lineCount the number of lines in <code>lines</code>
+     */
+    private void append(String lines, int lineCount) throws IOException {
+        Files.write(path, lines.getBytes(AccountsFile.CHARSET), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileLines += lineCount;
+        fileStamp = AtomicFiles.stamp(path);
+        if (fileLines > 2 * Math.max(LIMIT, compactedLines))
+            compact();
+    }
+
+    /**
+     * Rewrites the file so that replaying it gives the operations in the log: every operation is
+     * written as done, oldest first and ending with the next to redo, then undone again. Must be
+     * called while holding the lock.
+     */
+    private void compact() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (Operation operation : undoOperations) {
+            appendLines(builder, operation);
+        }
+        Iterator<Operation> redo = redoOperations.descendingIterator();
+        while (redo.hasNext()) {
+            appendLines(builder, redo.next());
+        }
+        for (int i = 0; i < redoOperations.size(); i++) {
+            builder.append(UNDO).append(System.lineSeparator());
+        }
+        AtomicFiles.write(path, builder.toString().getBytes(AccountsFile.CHARSET));
+        fileLines = keptLines();
+        compactedLines = fileLines;
+        fileStamp = AtomicFiles.stamp(path);
+    }
+
+    /**
+     * Appends the lines of an operation: a do line for a single change, or a group line with the
+     * number of changes followed by a do line for each.
+     *
+     * @return the number of lines appended
+     */
+    private static int appendLines(StringBuilder builder, Operation operation) {
+        int lines = operation.changes.size();
+        if (operation.changes.size() > 1) {
+            builder.append(GROUP).append(FIELD_SEPARATOR).append(operation.changes.size()).append(System.lineSeparator());
+            lines++;
+        }
+        for (Change change : operation.changes) {
+            builder.append(DO).append(FIELD_SEPARATOR)
+                   .append(AccountIndex.encode(change.accountName)).append(FIELD_SEPARATOR)
+                   .append(formatPassword(change.before)).append(FIELD_SEPARATOR)
+                   .append(formatPassword(change.after));
+            if (change.metadata != null) {
+                builder.append(FIELD_SEPARATOR);
+                AccountIndex.appendMetadata(builder, change.metadata);
+            }
+            builder.append(System.lineSeparator());
+        }
+        return lines;
+    }
+
+    /**
+     * @return the change on a do line, or null if the line is not one or is damaged
+     */
+    private static Change parseChange(String[] fields, Base64.Decoder decoder) {
+        if (!fields[0].equals(DO) || fields.length < 4)
+            return null;
+
+        try {
+            AccountMetadata metadata = fields.length > 4 ? AccountIndex.parseMetadata(fields, 4) : null;
+            return new Change(AccountIndex.decode(fields[1]), parsePassword(fields[2], decoder),
+                parsePassword(fields[3], decoder), metadata);
+        } catch (IllegalArgumentException err) {
+            return null;
+        }
+    }
+
+    private static String formatPassword(byte[] ciphertext) {
+        return ciphertext == null ? NO_PASSWORD : Base64.getEncoder().encodeToString(ciphertext);
+    }
+
+    private static byte[] parsePassword(String field, Base64.Decoder decoder) {
+        return field.equals(NO_PASSWORD) ? null : decoder.decode(field);
+    }
+}
@@ -1,6 +1,5 @@
 package app;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -12,7 +11,6 @@ import java.awt.GridLayout;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.datatransfer.StringSelection;
 import java.security.SecureRandom;
 
 import javax.swing.BoxLayout;
@@ -23,8 +21,11 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPasswordField;
 import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
@@ -43,11 +44,11 @@ public class PasswordGenerator extends JFrame {
     private final int BUTTONS_VGAP = 10;
     private final int BUTTONS_HGAP = 10;
 
-    // Character sets used in password generation
-    private final char[] LOWER = "abcdefghijklmnopqrstuvwxyz".toCharArray();
-    private final char[] UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
-    private final char[] NUMBERS = "0123456789".toCharArray();
-    private final char[] SYMBOLS = "^$*.[]{}()?-\"!@#%&/\\,><':;_~".toCharArray();
+    // Character sets used in password generation, also used by PasswordGeneratorHarness
+    static final char[] LOWER = "abcdefghijklmnopqrstuvwxyz".toCharArray();
+    static final char[] UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    static final char[] NUMBERS = "0123456789".toCharArray();
+    static final char[] SYMBOLS = "^$*.[]{}()?-\"!@#%&/\\,><':;_~".toCharArray();
 
     /**
      * Create a <code>JFrame</code> to add GUI components to.
@@ -86,7 +87,7 @@ public class PasswordGenerator extends JFrame {
 
         JPanel buttonsPanel = new JPanel();
         buttonsPanel.setBorder(new EmptyBorder(10, 0, 0, 0));
-        GridLayout buttonsPanelLayout = new GridLayout(2, 2);
+        GridLayout buttonsPanelLayout = new GridLayout(3, 2);
         buttonsPanelLayout.setVgap(BUTTONS_VGAP);
         buttonsPanelLayout.setHgap(BUTTONS_HGAP);
         buttonsPanel.setLayout(buttonsPanelLayout);
@@ -121,7 +122,10 @@ public class PasswordGenerator extends JFrame {
         optionsPanel.add(includeSymbolsCheckBox);
 
         // Create components to display and scroll across generated password
-        JTextField generatedPasswordTextField = new JTextField();
+        // A password field with no echo character shows the password, but lets it be read
+        // back as a char array with getPassword rather than as a string
+        JPasswordField generatedPasswordTextField = new JPasswordField();
+        generatedPasswordTextField.setEchoChar((char) 0);
         generatedPasswordTextField.setEditable(false);
         generatedPasswordTextField.setPreferredSize(new Dimension(150, 25));
         JScrollBar scrollBar = new JScrollBar(JScrollBar.HORIZONTAL);
@@ -131,6 +135,7 @@ public class PasswordGenerator extends JFrame {
         JButton generateButton = new JButton("Generate");
         JButton copyButton = new JButton("Copy");
         JButton savePasswordButton = new JButton("Save Password");
+        JButton saveBatchButton = new JButton("Save Batch");
         JButton toPasswordManagerButton = new JButton("Manager");
 
         // Add action listeners to buttons
@@ -154,22 +159,28 @@ public class PasswordGenerator extends JFrame {
                 checkBoxOptions.put("includeUppercase", includeUppercaseCheckBox.isSelected());
                 checkBoxOptions.put("includeNumbers", includeNumbersCheckBox.isSelected());
                 checkBoxOptions.put("includeSymbols", includeSymbolsCheckBox.isSelected());
-                String generatedPassword = generatePassword(passwordLength, checkBoxOptions);
-                generatedPasswordTextField.setText(generatedPassword);
+                char[] generatedPassword = generatePassword(passwordLength, checkBoxOptions);
+
+                // Swing text components can only be given strings, so displaying the
+                // password needs one short-lived string
+                generatedPasswordTextField.setText(new String(generatedPassword));
+                Secrets.wipe(generatedPassword);
             }
         });
 
         copyButton.addActionListener(new ActionListener() {
             /**
-             * Adds the text displayed in the text field to the clipboard.
+             * Adds the text displayed in the text field to the clipboard. The selection owns
+             * its copy of the password and wipes it when it leaves the clipboard.
              *
              * @param e the event being processed
              */
             @Override
             public void actionPerformed(ActionEvent e) {
+                SecretSelection selection = new SecretSelection(generatedPasswordTextField.getPassword());
                 Toolkit.getDefaultToolkit()
                        .getSystemClipboard()
-                       .setContents(new StringSelection(generatedPasswordTextField.getText()), null);
+                       .setContents(selection, selection);
             }
         });
 
@@ -184,7 +195,7 @@ public class PasswordGenerator extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 // Validate that a password has been generated
-                if (generatedPasswordTextField.getText().isBlank()) {
+                if (generatedPasswordTextField.getDocument().getLength() == 0) {
                     JOptionPane.showMessageDialog(
                         null, "A password has not been generated", "Password not generated", JOptionPane.ERROR_MESSAGE);
                     return;
@@ -192,12 +203,19 @@ public class PasswordGenerator extends JFrame {
 
                 // Create the option pane content
                 JTextField accountNameTextField = new JTextField(20);
+                JTextField urlTextField = new JTextField(20);
+                JTextField usernameTextField = new JTextField(20);
+                JTextField tagsTextField = new JTextField(20);
                 Object[] message = {
-                    "Account name:", accountNameTextField
+                    "Account name:", accountNameTextField,
+                    "URL (optional):", urlTextField,
+                    "Username (optional):", usernameTextField,
+                    "Tags, comma separated (optional):", tagsTextField
                 };
 
                 PasswordManager passwordManager = new PasswordManager("");
-                HashMap<String, String> accountPasswordPairs = passwordManager.readAccountsFile();
+                AccountStore accountStore = passwordManager.readAccountsFile();
+                AccountIndex accountIndex = passwordManager.readAccountIndex(accountStore);
 
                 // Show the option pane and carry out input validation
                 // Only close when the user has entered valid inputs or pressed the cancel button
@@ -219,7 +237,7 @@ public class PasswordGenerator extends JFrame {
                     }
 
                     // Validate that the entered account name is unique
-                    if (accountPasswordPairs.get(inputAccountName) != null) {
+                    if (accountStore.containsAccount(inputAccountName)) {
                         JOptionPane.showMessageDialog(
                             null, "Account name must be unique", "Invalid account name", JOptionPane.ERROR_MESSAGE);
                         continue;
@@ -229,20 +247,117 @@ public class PasswordGenerator extends JFrame {
                     break;
                 }
 
+                // Time the save separately from the dialogs, which wait on the user
+                VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.SAVE_PASSWORD);
                 try {
-                    accountPasswordPairs.put(accountNameTextField.getText(),
-                        passwordManager.encryptPassword(generatedPasswordTextField.getText(), passwordManager.getSecretKey()));
-                } catch (Exception err) {
-                    JOptionPane.showMessageDialog(null, passwordManager.createErrorTextArea(err, "Encryption failed, password not saved."),
-                        "Password save failure", JOptionPane.ERROR_MESSAGE);
-                    return;
+                    char[] generatedPassword = generatedPasswordTextField.getPassword();
+                    try {
+                        accountStore.put(accountNameTextField.getText(),
+                            PasswordManager.encryptPassword(generatedPassword, PasswordManager.getSecretKey()));
+                        accountIndex.put(accountNameTextField.getText(), AccountMetadata.created(urlTextField.getText().trim(),
+                            usernameTextField.getText().trim(), AccountMetadata.parseTags(tagsTextField.getText()),
+                            System.currentTimeMillis()));
+                    } catch (Exception err) {
+                        JOptionPane.showMessageDialog(null, passwordManager.createErrorTextArea(err, "Encryption failed, password not saved."),
+                            "Password save failure", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    } finally {
+                        Secrets.wipe(generatedPassword);
+                    }
+                    boolean saved = passwordManager.updateAccountFile(accountStore);
+                    passwordManager.updateAccountIndexFile(accountIndex, accountStore);
+                    if (saved)
+                        passwordManager.recordOperation(OperationLog.Operation.added(
+                            Collections.singletonList(accountNameTextField.getText()), accountStore, accountIndex));
+                } finally {
+                    timer.stop();
                 }
-                passwordManager.updateAccountFile(accountPasswordPairs);
                 JOptionPane.showMessageDialog(getContentPane(), "Password successfully added", "Password saved", JOptionPane.INFORMATION_MESSAGE);
                 return;
             }
         });
 
+        saveBatchButton.addActionListener(new ActionListener() {
+            /**
+             * Generates and saves a password for each account name the user enters, one per line,
+             * using the options currently selected. The names are checked against the manager in
+             * one pass, and names that are already saved or repeated are skipped and listed once
+             * the passwords are saved. The accounts file is written once for the whole batch,
+             * and the batch is recorded in the undo log as a single change.
+             * 
+             * @param e the event being processed
+             */
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // Create the option pane content
+                JTextArea accountNamesTextArea = new JTextArea(10, 20);
+                JTextField tagsTextField = new JTextField(20);
+                Object[] message = {
+                    "Account names, one per line:", new JScrollPane(accountNamesTextArea),
+                    "Tags, comma separated (optional):", tagsTextField,
+                    "Passwords are generated with the options selected in the generator."
+                };
+
+                // Show the option pane and validate that at least one account name was entered
+                List<String> accountNames;
+                while (true) {
+                    int input = JOptionPane.showConfirmDialog(null, message, "Save batch", JOptionPane.OK_CANCEL_OPTION);
+
+                    // Do nothing if cancel button is pressed
+                    if (input == JOptionPane.CANCEL_OPTION || input == JOptionPane.CLOSED_OPTION)
+                        return;
+
+                    accountNames = BatchSave.parseAccountNames(accountNamesTextArea.getText());
+                    if (accountNames.isEmpty()) {
+                        JOptionPane.showMessageDialog(
+                            null, "Enter at least one account name", "Invalid input(s)", JOptionPane.ERROR_MESSAGE);
+                        continue;
+                    }
+                    break;
+                }
+
+                PasswordManager passwordManager = new PasswordManager("");
+                AccountStore accountStore = passwordManager.readAccountsFile();
+                AccountIndex accountIndex = passwordManager.readAccountIndex(accountStore);
+
+                // Time the save separately from the dialogs, which wait on the user
+                BatchSave.Result result;
+                VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.SAVE_BATCH);
+                try {
+                    try {
+                        result = BatchSave.save(accountNames, (int) passwordLengthOptions.getSelectedItem(),
+                            includeUppercaseCheckBox.isSelected(), includeNumbersCheckBox.isSelected(),
+                            includeSymbolsCheckBox.isSelected(), AccountMetadata.parseTags(tagsTextField.getText()),
+                            accountStore, accountIndex);
+                    } catch (Exception err) {
+                        JOptionPane.showMessageDialog(null, passwordManager.createErrorTextArea(err, "Encryption failed, no passwords saved."),
+                            "Password save failure", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    if (!result.getSaved().isEmpty()) {
+                        boolean saved = passwordManager.updateAccountFile(accountStore);
+                        passwordManager.updateAccountIndexFile(accountIndex, accountStore);
+                        // The whole batch is undone as one change
+                        if (saved)
+                            passwordManager.recordOperation(OperationLog.Operation.added(result.getSaved(), accountStore,
+                                accountIndex));
+                    }
+                } finally {
+                    timer.stop();
+                }
+
+                // List the skipped names, up to a limit so that the dialog still fits on the screen
+                String summary = result.getSaved().size() + " passwords successfully added";
+                List<String> skipped = result.getSkipped();
+                if (!skipped.isEmpty()) {
+                    summary += "\n" + skipped.size() + " account names already saved or repeated, skipped: "
+                        + String.join(", ", skipped.subList(0, Math.min(skipped.size(), 10)))
+                        + (skipped.size() > 10 ? ", ..." : "");
+                }
+                JOptionPane.showMessageDialog(getContentPane(), summary, "Passwords saved", JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+
         toPasswordManagerButton.addActionListener(new ActionListener() {
             /**
              * Creates a <code>PasswordManager</code> instance and creates
@@ -266,6 +381,7 @@ public class PasswordGenerator extends JFrame {
         buttonsPanel.add(generateButton);
         buttonsPanel.add(copyButton);
         buttonsPanel.add(savePasswordButton);
+        buttonsPanel.add(saveBatchButton);
         buttonsPanel.add(toPasswordManagerButton);
 
         // Add options and buttons panels and generated password textfield to main panel
@@ -281,23 +397,45 @@ public class PasswordGenerator extends JFrame {
     }
 
     /**
-     * Generates a new password using the options that are currently set.
+     * Generates a new password using the options that are currently set, with a
+     * new secure random generator.
+     * 
+     * @param passwordLength the chosen password length
+     * @param checkBoxOptions a HashMap of option name string keys and the
+     *        associated combo box values
+     * @return the newly generated password
+     */
+    private char[] generatePassword(Integer passwordLength, HashMap<String, Boolean> checkBoxOptions) {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.PASSWORD_GENERATION);
+        try {
+            return generatePassword(passwordLength, checkBoxOptions.get("includeUppercase"),
+                checkBoxOptions.get("includeNumbers"), checkBoxOptions.get("includeSymbols"), new SecureRandom());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Generates a new password using the given options.
      * All generated passwords will have at least one lowercase character.
      * <p>
      * First adds one of each of the required characters to ensure the password
      * requirements are met. The required characters are determined from the
      * options chosen by the user. Random characters are then added from the
      * character pool until the defined length is reached, and the password
-     * string is shuffled.
+     * is shuffled in place. The password is returned as a <code>char[]</code>
+     * so that it can be wiped with <code>Secrets.wipe</code> once it has been used.
      * 
      * @param passwordLength the chosen password length
-     * @param checkBoxOptions a HashMap of option name string keys and the
-     *        associated combo box values
-     * @return the newly generated password string
+     * @param includeUppercase whether the password includes uppercase characters
+     * @param includeNumbers whether the password includes numbers
+     * @param includeSymbols whether the password includes symbols
+     * @param rand the random generator used to pick and shuffle the characters
+     * @return the newly generated password
      */
-    private String generatePassword(Integer passwordLength, HashMap<String, Boolean> checkBoxOptions) {
+    static char[] generatePassword(int passwordLength, boolean includeUppercase, boolean includeNumbers,
+        boolean includeSymbols, Random rand) {
         // Define variables and add a random lowercase character to the password
-        Random rand = new SecureRandom();
         char[] password = new char[passwordLength];
         password[0] = LOWER[rand.nextInt(LOWER.length)];
         int passwordIndex = 1;
@@ -305,11 +443,6 @@ public class PasswordGenerator extends JFrame {
         // Create set of characters that can be used in password
         String charSet = String.valueOf(LOWER);
 
-        // Get the option value pairs from the HashMap
-        boolean includeUppercase = checkBoxOptions.get("includeUppercase");
-        boolean includeNumbers = checkBoxOptions.get("includeNumbers");
-        boolean includeSymbols = checkBoxOptions.get("includeSymbols");
-
         // Include at least one character from required character sets
         // and add required character sets to the global character set
         if (includeUppercase) {
@@ -335,31 +468,26 @@ public class PasswordGenerator extends JFrame {
             passwordIndex++;
         }
 
-        // Shuffle the password
-        List<Character> shuffleList = new ArrayList<Character>();
-        for (char c : password) {
-            shuffleList.add(c);
-        }
-        Collections.shuffle(shuffleList);
-        StringBuilder builder = new StringBuilder();
-        for (char c : shuffleList) {
-            builder.append(c);
+        // Shuffle the password in place (Fisher-Yates) using the same secure random generator
+        for (int i = password.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            char swap = password[i];
+            password[i] = password[j];
+            password[j] = swap;
         }
-        String shuffledPassword = String.valueOf(builder);
         
-        return shuffledPassword;
+        return password;
     }
 
     /**
-     * Creates an instance of the GUI and adds components, then displays the window.
+     * Adds the components to this window, then displays it.
      */
     public void createAndShowWindow() {
-        // Create generator window
-        PasswordGenerator passwordGenerator = new PasswordGenerator("Password Generator");
         // Add the content to the pane
-        passwordGenerator.addComponents(passwordGenerator.getContentPane());
+        addComponents(getContentPane());
         // Display the window
-        passwordGenerator.pack();
-        passwordGenerator.setVisible(true);
+        pack();
+        setVisible(true);
+        VaultMetrics.recordStartup(VaultMetrics.Operation.STARTUP_WINDOW);
     }
 }
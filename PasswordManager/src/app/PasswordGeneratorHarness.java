@@ -0,0 +1,405 @@
+package app;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Checks that <code>PasswordGenerator.generatePassword</code> is unbiased and measures how fast
+ * it is. For every combination of options, and each password length tested, millions of
+ * passwords are generated in parallel and the following are checked with chi-square tests:
+ * <ul>
+ * <li>characters, how often each character appears across all positions</li>
+ * <li>positions, how often each character appears at each position, which catches a shuffle
+ * that leaves the forced first characters where they were placed</li>
+ * <li>classes, how many characters of each class (lowercase, uppercase, numbers, symbols) each
+ * password has</li>
+ * </ul>
+ * and every password is checked to contain at least one character of each selected class.
+ * <p>
+ * The expected frequencies account for the forced characters: a password of length L with k
+ * selected classes has one random character from each class and L - k random characters from
+ * the combined set, placed in random positions by the shuffle. So a character from a class of
+ * size c is expected 1/c + (L - k)/N times per password, where N is the size of the combined
+ * set, and the number of characters of that class is 1 plus a binomial(L - k, c/N) count.
+ * <p>
+ * Run with
+ * <code>java -cp "Password Generator and Manager.jar" app.PasswordGeneratorHarness [passwords] [lengths]</code>,
+ * for example <code>... 1000000 4,16,64</code>. The exit code is 1 if any test fails, so speed and
+ * quality can both be tracked from a build script.
+ */
+public class PasswordGeneratorHarness {
+    private static final int DEFAULT_PASSWORDS = 1000000;
+    private static final int[] DEFAULT_LENGTHS = {4, 16, 64};
+    // Tests fail when the p-value is below this, a false failure is expected about once in 1000 runs of a test
+    private static final double SIGNIFICANCE = 0.001;
+    // Chi-square tests need at least this many expected occurrences in every cell
+    private static final double MIN_EXPECTED = 5;
+
+    private static final String[] CLASS_NAMES = {"lowercase", "uppercase", "numbers", "symbols"};
+    private static final char[][] CLASSES = {
+        PasswordGenerator.LOWER, PasswordGenerator.UPPER, PasswordGenerator.NUMBERS, PasswordGenerator.SYMBOLS
+    };
+
+    /**
+     * The options passed to the generator, and the character set they give.
+     */
+    private static class Options {
+        final int passwordLength;
+        final boolean[] classSelected = new boolean[CLASSES.length];
+        // The selected classes, indexes into CLASSES
+        final int[] classes;
+        final char[] charSet;
+        // The index in charSet of each character, or -1
+        final int[] charIndex = new int[Character.MAX_VALUE + 1];
+        // The position in classes of the class of each character in charSet
+        final int[] charClass;
+
+        Options(int passwordLength, boolean includeUppercase, boolean includeNumbers, boolean includeSymbols) {
+            this.passwordLength = passwordLength;
+            classSelected[0] = true;
+            classSelected[1] = includeUppercase;
+            classSelected[2] = includeNumbers;
+            classSelected[3] = includeSymbols;
+
+            List<Integer> selected = new ArrayList<>();
+            StringBuilder builder = new StringBuilder();
+            for (int c = 0; c < CLASSES.length; c++) {
+                if (classSelected[c]) {
+                    selected.add(c);
+                    builder.append(CLASSES[c]);
+                }
+            }
+            classes = selected.stream().mapToInt(Integer::intValue).toArray();
+            charSet = builder.toString().toCharArray();
+
+            Arrays.fill(charIndex, -1);
+            charClass = new int[charSet.length];
+            int index = 0;
+            for (int c = 0; c < classes.length; c++) {
+                for (char character : CLASSES[classes[c]]) {
+                    charIndex[character] = index;
+                    charClass[index] = c;
+                    index++;
+                }
+            }
+        }
+
+        char[] generate(SecureRandom rand) {
+            return PasswordGenerator.generatePassword(passwordLength, classSelected[1], classSelected[2], classSelected[3], rand);
+        }
+
+        /**
+         * @return the expected number of times the character at an index appears in one password
+         */
+        double expectedPerPassword(int index) {
+            int classSize = CLASSES[classes[charClass[index]]].length;
+            return 1.0 / classSize + (double) (passwordLength - classes.length) / charSet.length;
+        }
+
+        String describe() {
+            StringBuilder builder = new StringBuilder();
+            for (int c : classes) {
+                builder.append(builder.length() == 0 ? "" : "+").append(CLASS_NAMES[c]);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Counts of what was generated, one per batch, added together at the end.
+     */
+    private static class Tally {
+        final long[] characterCounts;
+        final long[][] positionCounts;
+        // For each selected class, how many passwords had each number of characters of that class
+        final long[][] classCounts;
+        long invalidCharacters = 0;
+        long missingClass = 0;
+
+        Tally(Options options) {
+            characterCounts = new long[options.charSet.length];
+            positionCounts = new long[options.passwordLength][options.charSet.length];
+            classCounts = new long[options.classes.length][options.passwordLength + 1];
+        }
+
+        void count(Options options, char[] password) {
+            int[] perClass = new int[options.classes.length];
+            for (int position = 0; position < password.length; position++) {
+                int index = options.charIndex[password[position]];
+                if (index == -1) {
+                    invalidCharacters++;
+                    continue;
+                }
+                characterCounts[index]++;
+                positionCounts[position][index]++;
+                perClass[options.charClass[index]]++;
+            }
+            for (int c = 0; c < perClass.length; c++) {
+                classCounts[c][perClass[c]]++;
+                if (perClass[c] == 0)
+                    missingClass++;
+            }
+        }
+
+        Tally add(Tally other) {
+            for (int i = 0; i < characterCounts.length; i++) {
+                characterCounts[i] += other.characterCounts[i];
+            }
+            for (int position = 0; position < positionCounts.length; position++) {
+                for (int i = 0; i < characterCounts.length; i++) {
+                    positionCounts[position][i] += other.positionCounts[position][i];
+                }
+            }
+            for (int c = 0; c < classCounts.length; c++) {
+                for (int count = 0; count < classCounts[c].length; count++) {
+                    classCounts[c][count] += other.classCounts[c][count];
+                }
+            }
+            invalidCharacters += other.invalidCharacters;
+            missingClass += other.missingClass;
+            return this;
+        }
+    }
+
+    /**
+     * Runs the tests for the lengths and number of passwords given, or the defaults, and
+     * prints a report.
+     *
+     * @param args the number of passwords for each combination of options, and a comma
+     *             separated list of password lengths
+     */
+    public static void main(String[] args) {
+        int passwords = DEFAULT_PASSWORDS;
+        int[] lengths = DEFAULT_LENGTHS;
+        try {
+            if (args.length > 0)
+                passwords = Integer.parseInt(args[0]);
+            if (args.length > 1) {
+                String[] lengthArgs = args[1].split(",");
+                lengths = new int[lengthArgs.length];
+                for (int i = 0; i < lengthArgs.length; i++) {
+                    lengths[i] = Integer.parseInt(lengthArgs[i].trim());
+                }
+            }
+        } catch (NumberFormatException err) {
+            System.err.println("Usage: PasswordGeneratorHarness [passwords] [lengths, comma separated]");
+            System.exit(2);
+        }
+
+        int failures = 0;
+        for (int length : lengths) {
+            for (int combination = 0; combination < 8; combination++) {
+                Options options = new Options(length, (combination & 1) != 0, (combination & 2) != 0, (combination & 4) != 0);
+                if (length < options.classes.length)
+                    continue;
+                failures += run(options, passwords);
+            }
+        }
+        System.out.println(failures == 0 ? "All tests passed" : failures + " tests failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Generates and tests the passwords for one combination of options.
+     *
+     * @return the number of tests that failed
+     */
+    private static int run(Options options, int passwords) {
+        // Split into more batches than threads so that uneven threads still finish together
+        int batches = Math.max(1, Math.min(passwords, Runtime.getRuntime().availableProcessors() * 4));
+        long startNanos = System.nanoTime();
+        Tally tally = IntStream.range(0, batches).parallel().mapToObj(batch -> {
+            Tally batchTally = new Tally(options);
+            SecureRandom rand = new SecureRandom();
+            int batchPasswords = passwords / batches + (batch < passwords % batches ? 1 : 0);
+            for (int i = 0; i < batchPasswords; i++) {
+                char[] password = options.generate(rand);
+                batchTally.count(options, password);
+                Secrets.wipe(password);
+            }
+            return batchTally;
+        }).reduce(Tally::add).get();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        System.out.printf("length %d, %s: %d passwords in %.2f s, %.0f passwords/s%n", options.passwordLength,
+            options.describe(), passwords, seconds, passwords / seconds);
+        int failures = 0;
+        failures += testCharacters(options, tally, passwords);
+        failures += testPositions(options, tally, passwords);
+        failures += testClasses(options, tally, passwords);
+        failures += report("coverage", tally.missingClass + tally.invalidCharacters == 0, String.format(
+            "%d passwords missing a class, %d characters outside the set", tally.missingClass, tally.invalidCharacters));
+        return failures;
+    }
+
+    private static int testCharacters(Options options, Tally tally, int passwords) {
+        double[] expected = new double[options.charSet.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = passwords * options.expectedPerPassword(i);
+        }
+        return reportChiSquare("characters", tally.characterCounts, expected);
+    }
+
+    private static int testPositions(Options options, Tally tally, int passwords) {
+        double[] expected = new double[options.charSet.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = passwords * options.expectedPerPassword(i) / options.passwordLength;
+        }
+
+        for (double cell : expected) {
+            if (cell < MIN_EXPECTED)
+                return report("positions", true, "skipped, too few passwords for the expected counts");
+        }
+
+        // Report the worst position, corrected for testing every position
+        double worstPValue = Double.POSITIVE_INFINITY;
+        double worstStatistic = 0;
+        int worstPosition = 0;
+        for (int position = 0; position < options.passwordLength; position++) {
+            double statistic = chiSquare(tally.positionCounts[position], expected);
+            double pValue = chiSquarePValue(statistic, expected.length - 1);
+            if (pValue < worstPValue) {
+                worstPValue = pValue;
+                worstStatistic = statistic;
+                worstPosition = position;
+            }
+        }
+        return report("positions", worstPValue >= SIGNIFICANCE / options.passwordLength, String.format(
+            "worst chi2=%.2f df=%d p=%.4f at position %d", worstStatistic, expected.length - 1, worstPValue, worstPosition));
+    }
+
+    private static int testClasses(Options options, Tally tally, int passwords) {
+        int failures = 0;
+        int randomCharacters = options.passwordLength - options.classes.length;
+        for (int c = 0; c < options.classes.length; c++) {
+            // 1 forced character plus a binomial number of the random characters
+            double probability = (double) CLASSES[options.classes[c]].length / options.charSet.length;
+            long[] observed = new long[randomCharacters + 1];
+            double[] expected = new double[randomCharacters + 1];
+            for (int extra = 0; extra <= randomCharacters; extra++) {
+                observed[extra] = tally.classCounts[c][extra + 1];
+                expected[extra] = passwords * binomial(randomCharacters, extra, probability);
+            }
+            failures += reportChiSquare(CLASS_NAMES[options.classes[c]], observed, expected);
+        }
+        return failures;
+    }
+
+    /**
+     * Runs a chi-square test after merging neighbouring cells until every cell is expected at
+     * least <code>MIN_EXPECTED</code> times, and prints the result.
+     *
+     * @return 1 if the test failed, otherwise 0
+     */
+    private static int reportChiSquare(String name, long[] observed, double[] expected) {
+        long[] cellsObserved = new long[observed.length];
+        double[] cellsExpected = new double[expected.length];
+        int cells = 0;
+        for (int i = 0; i < observed.length; i++) {
+            cellsObserved[cells] += observed[i];
+            cellsExpected[cells] += expected[i];
+            if (cellsExpected[cells] >= MIN_EXPECTED && i < observed.length - 1)
+                cells++;
+        }
+
+        // The last cell holds whatever is left, which is folded into the one before if too small
+        if (cellsExpected[cells] < MIN_EXPECTED && cells > 0) {
+            cellsObserved[cells - 1] += cellsObserved[cells];
+            cellsExpected[cells - 1] += cellsExpected[cells];
+        } else {
+            cells++;
+        }
+        if (cells < 2)
+            return report(name, true, "skipped, a single outcome");
+
+        cellsObserved = Arrays.copyOf(cellsObserved, cells);
+        cellsExpected = Arrays.copyOf(cellsExpected, cells);
+        double statistic = chiSquare(cellsObserved, cellsExpected);
+        double pValue = chiSquarePValue(statistic, cells - 1);
+        return report(name, pValue >= SIGNIFICANCE, String.format("chi2=%.2f df=%d p=%.4f", statistic, cells - 1, pValue));
+    }
+
+    private static int report(String name, boolean passed, String details) {
+        System.out.printf("  %-12s %s %s%n", name, passed ? "PASS" : "FAIL", details);
+        return passed ? 0 : 1;
+    }
+
+    private static double chiSquare(long[] observed, double[] expected) {
+        double statistic = 0;
+        for (int i = 0; i < observed.length; i++) {
+            double difference = observed[i] - expected[i];
+            statistic += difference * difference / expected[i];
+        }
+        return statistic;
+    }
+
+    /**
+     * @return the probability of a chi-square statistic at least this large, the upper
+     *         regularized gamma function Q(df / 2, statistic / 2)
+     */
+    static double chiSquarePValue(double statistic, int degreesOfFreedom) {
+        double a = degreesOfFreedom / 2.0;
+        double x = statistic / 2.0;
+        if (x <= 0)
+            return 1;
+
+        if (x < a + 1) {
+            // Series for the lower gamma function P(a, x)
+            double term = 1 / a;
+            double sum = term;
+            for (int n = 1; n < 1000 && Math.abs(term) > Math.abs(sum) * 1e-15; n++) {
+                term *= x / (a + n);
+                sum += term;
+            }
+            return Math.max(0, 1 - sum * Math.exp(-x + a * Math.log(x) - logGamma(a)));
+        }
+
+        // Continued fraction for Q(a, x), evaluated with the modified Lentz method
+        double tiny = 1e-300;
+        double b = x + 1 - a;
+        double c = 1 / tiny;
+        double d = 1 / b;
+        double h = d;
+        for (int i = 1; i < 1000; i++) {
+            double an = -i * (i - a);
+            b += 2;
+            d = an * d + b;
+            d = Math.abs(d) < tiny ? tiny : d;
+            c = b + an / c;
+            c = Math.abs(c) < tiny ? tiny : c;
+            d = 1 / d;
+            double delta = d * c;
+            h *= delta;
+            if (Math.abs(delta - 1) < 1e-15)
+                break;
+        }
+        return Math.exp(-x + a * Math.log(x) - logGamma(a)) * h;
+    }
+
+    private static double binomial(int trials, int successes, double probability) {
+        double logCoefficient = logGamma(trials + 1) - logGamma(successes + 1) - logGamma(trials - successes + 1);
+        return Math.exp(logCoefficient + successes * Math.log(probability)
+            + (trials - successes) * Math.log1p(-probability));
+    }
+
+    /**
+     * The natural logarithm of the gamma function, using the Lanczos approximation.
+     */
+    private static double logGamma(double x) {
+        double[] coefficients = {
+            76.18009172947146, -86.50532032941677, 24.01409824083091,
+            -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5
+        };
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double series = 1.000000000190015;
+        for (double coefficient : coefficients) {
+            series += coefficient / ++y;
+        }
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+}
@@ -0,0 +1,281 @@
+package app;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The previous encrypted passwords of the accounts, so that a password rotation or a removed
+ * account can be rolled back. Whenever accounts.txt is written, the ciphertexts that were replaced
+ * or removed are appended to accounts-history.txt with the time they were replaced. The history is
+ * kept out of accounts.txt and the <code>AccountStore</code>, so it does not slow down loading the
+ * accounts or looking up a password, and it is only read when the user asks to see it.
+ * <p>
+ * How much history is kept is set with system properties, for example
+ * <code>-Dpasswordmanager.history.versions=5 -Dpasswordmanager.history.days=365</code>:
+ * <ul>
+ * <li><code>passwordmanager.history.versions</code> the number of previous passwords kept for
+ * each account, 10 by default, where 0 turns the history off</li>
+ * <li><code>passwordmanager.history.days</code> the number of days previous passwords are kept
+ * for, where 0, the default, keeps them until they are pushed out by newer versions</li>
+ * </ul>
+ */
+public class PasswordHistory {
+    public static final String VERSIONS_PROPERTY = "passwordmanager.history.versions";
+    public static final String DAYS_PROPERTY = "passwordmanager.history.days";
+
+    private static final int DEFAULT_VERSIONS = 10;
+    private static final int DEFAULT_DAYS = 0;
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /**
+     * A previous password of an account.
+     */
+    public static class Version {
+        private final long replaced;
+        private byte[] ciphertext;
+
+        Version(long replaced, byte[] ciphertext) {
+            this.replaced = replaced;
+            this.ciphertext = ciphertext;
+        }
+
+        /**
+         * @return when the password was replaced or removed
+         */
+        public long getReplaced() {
+            return replaced;
+        }
+
+        /**
+         * @return a copy of the encrypted password
+         */
+        public byte[] getCiphertext() {
+            return ciphertext.clone();
+        }
+    }
+
+    // The previous passwords of each account, oldest first
+    private final HashMap<String, List<Version>> versions = new HashMap<>();
+
+    /**
+     * @return the number of previous passwords kept for each account
+     */
+    public static int retainedVersions() {
+        return Math.max(0, Integer.getInteger(VERSIONS_PROPERTY, DEFAULT_VERSIONS));
+    }
+
+    /**
+     * @return how long previous passwords are kept for in milliseconds, or 0 to keep them
+     *         regardless of their age
+     */
+    public static long retainedMillis() {
+        return TimeUnit.DAYS.toMillis(Math.max(0, Integer.getInteger(DAYS_PROPERTY, DEFAULT_DAYS)));
+    }
+
+    /**
+     * @return the names of the accounts with previous passwords, sorted, including accounts
+     *         that have since been removed
+     */
+    public Set<String> accountNames() {
+        return new TreeSet<>(versions.keySet());
+    }
+
+    /**
+     * @param accountName the account name to look up
+     * @return the previous passwords of the account, newest first
+     */
+    public List<Version> versions(String accountName) {
+        List<Version> accountVersions = versions.get(accountName);
+        if (accountVersions == null)
+            return Collections.emptyList();
+
+        List<Version> newestFirst = new ArrayList<>(accountVersions);
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    /**
+     * Drops the previous passwords that are past the retention set by the system properties.
+     *
+     * @param now the current time
+     */
+    void trim(long now) {
+        int maxVersions = retainedVersions();
+        long maxAge = retainedMillis();
+        Iterator<Map.Entry<String, List<Version>>> entries = versions.entrySet().iterator();
+        while (entries.hasNext()) {
+            List<Version> accountVersions = entries.next().getValue();
+            if (maxAge > 0)
+                accountVersions.removeIf(version -> version.replaced < now - maxAge);
+            if (accountVersions.size() > maxVersions)
+                accountVersions.subList(0, accountVersions.size() - maxVersions).clear();
+            if (accountVersions.isEmpty())
+                entries.remove();
+        }
+    }
+
+    /**
+     * Adds the previous passwords in another history that this one does not already hold, for
+     * example when a backup is restored.
+     *
+     * @param other the history to add
+     */
+    void merge(PasswordHistory other) {
+        for (Map.Entry<String, List<Version>> entry : other.versions.entrySet()) {
+            List<Version> accountVersions = versions.computeIfAbsent(entry.getKey(), name -> new ArrayList<>());
+            for (Version version : entry.getValue()) {
+                boolean held = accountVersions.stream().anyMatch(kept -> kept.replaced == version.replaced
+                    && Arrays.equals(kept.ciphertext, version.ciphertext));
+                if (!held)
+                    accountVersions.add(version);
+            }
+            accountVersions.sort((a, b) -> Long.compare(a.replaced, b.replaced));
+        }
+    }
+
+    /**
+     * Re-encodes the previous passwords, for example when they are re-encrypted with a different cipher.
+     *
+     * @param reencoder re-encodes the passwords that need it
+     * @return the number of previous passwords that were re-encoded
+     * @throws GeneralSecurityException if a password could not be re-encoded
+     */
+    int reencode(AccountsFile.Reencoder reencoder) throws GeneralSecurityException {
+        int reencoded = 0;
+        for (List<Version> accountVersions : versions.values()) {
+            for (Version version : accountVersions) {
+                byte[] ciphertext = reencoder.reencode(version.ciphertext);
+                if (ciphertext != null) {
+                    version.ciphertext = ciphertext;
+                    reencoded++;
+                }
+            }
+        }
+        return reencoded;
+    }
+
+    /**
+     * Finds the passwords replaced or removed by writing <code>current</code> over
+     * <code>previous</code>, formatted as lines to append to the history file.
+     *
+     * @param previous the accounts in the file before the write
+     * @param current the accounts being written
+     * @param now the time of the write
+     * @return the lines to append, empty if no password was replaced or removed
+     */
+    static byte[] formatChanges(AccountStore previous, AccountStore current, long now) {
+        if (retainedVersions() == 0)
+            return new byte[0];
+
+        StringBuilder builder = new StringBuilder();
+        for (int entry = 0; entry < previous.size(); entry++) {
+            String accountName = previous.accountName(entry);
+            byte[] ciphertext = previous.ciphertext(entry);
+            if (!current.hasCiphertext(accountName, ciphertext))
+                appendLine(builder, accountName, new Version(now, ciphertext));
+        }
+        return builder.toString().getBytes(AccountsFile.CHARSET);
+    }
+
+    /**
+     * Finds the passwords replaced or removed by a write that changed only the given accounts,
+     * formatted as lines to append to the history file. Only those accounts are compared, so the
+     * cost does not grow with the size of the vault.
+     *
+     * @param previous the shards in the files before the write
+     * @param current the shards being written
+     * @param layout the layout the shards are split by
+     * @param accountNames the accounts put or removed by the write
+     * @param now the time of the write
+     * @return the lines to append, empty if no password was replaced or removed
+     */
+    static byte[] formatChanges(AccountStore[] previous, AccountStore[] current, ShardLayout layout,
+                                Set<String> accountNames, long now) {
+        if (retainedVersions() == 0)
+            return new byte[0];
+
+        StringBuilder builder = new StringBuilder();
+        for (String accountName : accountNames) {
+            int shard = layout.shardOf(accountName);
+            byte[] ciphertext = previous[shard].get(accountName);
+            if (ciphertext != null && !current[shard].hasCiphertext(accountName, ciphertext))
+                appendLine(builder, accountName, new Version(now, ciphertext));
+        }
+        return builder.toString().getBytes(AccountsFile.CHARSET);
+    }
+
+    /**
+     * Parses the contents of a history file. Each line holds the account name, the time the
+     * password was replaced and the Base64 encoded password, separated by tabs.
+     *
+     * @param contents the contents of a history file
+     * @return the history
+     */
+    static PasswordHistory parse(byte[] contents) {
+        PasswordHistory history = new PasswordHistory();
+        Base64.Decoder decoder = Base64.getDecoder();
+        for (String line : new String(contents, AccountsFile.CHARSET).split("\\R")) {
+            String[] fields = line.split(FIELD_SEPARATOR, -1);
+            if (fields.length < 3)
+                continue;
+
+            // Skip lines that were damaged, for example by a write that was cut short
+            try {
+                Version version = new Version(Long.parseLong(fields[1]), decoder.decode(fields[2]));
+                history.versions.computeIfAbsent(AccountIndex.decode(fields[0]), name -> new ArrayList<>()).add(version);
+            } catch (IllegalArgumentException err) {
+                continue;
+            }
+        }
+
+        // Lines are appended in the order passwords were replaced, but merged writers may interleave
+        for (List<Version> accountVersions : history.versions.values()) {
+            accountVersions.sort((a, b) -> Long.compare(a.replaced, b.replaced));
+        }
+        return history;
+    }
+
+    /**
+     * Formats the history into the contents of a history file.
+     *
+     * @return the contents of the history file
+     */
+    byte[] format() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<Version>> entry : versions.entrySet()) {
+            for (Version version : entry.getValue()) {
+                appendLine(builder, entry.getKey(), version);
+            }
+        }
+        return builder.toString().getBytes(AccountsFile.CHARSET);
+    }
+
+    private static void appendLine(StringBuilder builder, String accountName, Version version) {
+        appendFields(builder, accountName, version);
+        builder.append(System.lineSeparator());
+    }
+
+    /**
+     * Appends the fields of a line of a history file, without the line separator: the account
+     * name, the time the password was replaced and the Base64 encoded password, separated by tabs.
+     *
+     * @param builder the builder to append the fields to
+     * @param accountName the account name
+     * @param version a previous password of the account
+     */
+    static void appendFields(StringBuilder builder, String accountName, Version version) {
+        builder.append(AccountIndex.encode(accountName)).append(FIELD_SEPARATOR)
+               .append(version.replaced).append(FIELD_SEPARATOR)
+               .append(Base64.getEncoder().encodeToString(version.ciphertext));
+    }
+}
@@ -1,43 +1,48 @@
 package app;
 
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.HashMap;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.security.InvalidKeyException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.Toolkit;
-import java.awt.datatransfer.StringSelection;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
+import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPasswordField;
@@ -46,8 +51,12 @@ import javax.swing.JSeparator;
 import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.DefaultTableModel;
 
 /**
@@ -66,8 +75,37 @@ public class PasswordManager extends JFrame {
     private final int BUTTONS_VGAP = 10;
     private final int BUTTONS_HGAP = 10;
 
+    // Number of rows added to the table at a time while the vault is loading
+    private static final int TABLE_LOAD_BATCH_SIZE = 2000;
+
     // Password used in encryption
-    private final String CIPHER_PASS = "passwordToTestEncryption";
+    private static final String CIPHER_PASS = "passwordToTestEncryption";
+
+    // Version byte of entries encrypted with AES-GCM, see encryptPassword
+    static final byte ENTRY_VERSION_GCM = 1;
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int ENTRY_BLOCK_SIZE = 16;
+
+    // Each thread draws nonces from its own random generator, SecureRandom is slow when shared
+    private static final ThreadLocal<SecureRandom> NONCE_RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    // The accounts.txt file and the watcher that reloads it when it is changed externally
+    private final AccountsFile accountsFile = new AccountsFile();
+    private AccountsFileWatcher accountsFileWatcher;
+    private boolean disposed = false;
+
+    // Filters the accounts shown in the table, see AccountIndex.query for the queries it accepts
+    private JTextField accountFilterTextField = new JTextField();
+
+    // The saved accounts and their metadata, empty until the vault has been loaded in the background
+    private AccountStore accountStore = new AccountStore();
+    private AccountIndex accountIndex = new AccountIndex();
+
+    // The changes made from this window that can be undone, and the buttons that undo and redo them
+    private final OperationLog operationLog = new OperationLog(accountsFile);
+    private final JButton undoButton = new JButton("Undo");
+    private final JButton redoButton = new JButton("Redo");
 
     /**
      * Create a <code>JFrame</code> to add GUI components to.
@@ -99,28 +137,50 @@ public class PasswordManager extends JFrame {
 
         JPanel buttonsPanel = new JPanel();
         buttonsPanel.setBorder(new EmptyBorder(10, 0, 0, 0));
-        GridLayout buttonsPanelLayout = new GridLayout(2, 2);
+        GridLayout buttonsPanelLayout = new GridLayout(4, 2);
         buttonsPanelLayout.setVgap(BUTTONS_VGAP);
         buttonsPanelLayout.setHgap(BUTTONS_HGAP);
         buttonsPanel.setLayout(buttonsPanelLayout);
 
-        // Create HashMap of account name and password pairs from accounts.txt file
-        HashMap<String, String> accountPasswordPairs = readAccountsFile();
-
-        // Create and populate table of account names
+        // Create the table of account names, which is filled once the vault is loaded
         JTable accountTable = new JTable();
         DefaultTableModel accountTableModel = new DefaultTableModel();
         accountTable.setModel(accountTableModel);
         
         accountTableModel.addColumn("Accounts");
-        updateAccountTable(accountPasswordPairs, accountTableModel);
         JScrollPane accountTableSP = new JScrollPane(accountTable);
+
+        // Create the filter field, which updates the table as the user types
+        JPanel filterPanel = new JPanel(new BorderLayout(BUTTONS_HGAP, 0));
+        filterPanel.setBorder(new EmptyBorder(0, 0, 10, 0));
+        filterPanel.add(new JLabel("Filter"), BorderLayout.WEST);
+        filterPanel.add(accountFilterTextField, BorderLayout.CENTER);
+        accountFilterTextField.setToolTipText("<html>Account name, or one of:<br>tag:name<br>"
+            + "unchanged:days (password not changed in days)<br>uncopied:days (password not copied in days)</html>");
+        accountFilterTextField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateAccountTable(accountStore, accountIndex, accountTableModel);
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateAccountTable(accountStore, accountIndex, accountTableModel);
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateAccountTable(accountStore, accountIndex, accountTableModel);
+            }
+        });
+
         accountTableSP.setPreferredSize(new Dimension(buttonsPanel.getSize().width, 200));
 
         // Create buttons to manage saved passwords
         JButton addButton = new JButton("Add");
         JButton removeButton = new JButton("Remove");
         JButton copyButton = new JButton("Copy");
+        JButton historyButton = new JButton("History");
         JButton toPasswordGeneratorButton = new JButton("Generator");
 
         // Add action listeners to buttons
@@ -134,16 +194,17 @@ public class PasswordManager extends JFrame {
              */
             @Override
             public void actionPerformed(ActionEvent e) {
-                createAddAccountOptionPane(accountPasswordPairs, accountTableModel);
+                createAddAccountOptionPane(accountStore, accountIndex, accountTableModel);
             }
         });
 
         removeButton.addActionListener(new ActionListener() {
             /**
              * Removes the selected account from the manager. When the user selects an account/row from
-             * the table and presses the remove button, the account name is taken and the matching key-value
-             * pair is removed from the accountPasswordPairs HashMap. The accounts file is then updated
+             * the table and presses the remove button, the account name is taken and the matching account
+             * is removed from the account store. The accounts file is then updated
              * followed by the accounts table being updated. The function returns if a row is not selected.
+             * The removal is recorded in the undo log, so it can be undone with the undo button.
              * 
              * @param e the event being processed
              */
@@ -154,17 +215,28 @@ public class PasswordManager extends JFrame {
                     return;
                 
                 String accountToRemove = accountTable.getValueAt(selectedRowIndex, 0).toString();
-                accountPasswordPairs.remove(accountToRemove);
-                updateAccountFile(accountPasswordPairs);
-                updateAccountTable(accountPasswordPairs, accountTableModel);
+                VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.REMOVE_ACCOUNT);
+                try {
+                    byte[] removedPassword = accountStore.get(accountToRemove);
+                    AccountMetadata removedMetadata = accountIndex.get(accountToRemove);
+                    accountStore.remove(accountToRemove);
+                    accountIndex.remove(accountToRemove);
+                    boolean saved = updateAccountFile(accountStore);
+                    updateAccountIndexFile(accountIndex, accountStore);
+                    if (saved)
+                        recordOperation(accountToRemove, removedPassword, removedMetadata, accountStore, accountIndex);
+                    updateAccountTable(accountStore, accountIndex, accountTableModel);
+                } finally {
+                    timer.stop();
+                }
             }
         });
 
         copyButton.addActionListener(new ActionListener() {
             /**
              * When the user selects an account/row from the table and presses the copy button, the account
-             * name is used to retrieve the associated value (the password) from the accountPasswordPairs
-             * HashMap. The password is passed through the decryption method to retrieve the plaintext
+             * name is used to retrieve the associated value (the password) from the account
+             * store. The password is passed through the decryption method to retrieve the plaintext
              * version of the password which is then copied to the clipboard.
              * 
              * @param e the event being processed
@@ -176,19 +248,75 @@ public class PasswordManager extends JFrame {
                     return;
 
                 String selectedAccountName = accountTable.getValueAt(selectedRowIndex, 0).toString();
+                VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.COPY_PASSWORD);
                 try {
+                    // The selection owns the decrypted password and wipes it when it leaves the clipboard
+                    SecretSelection selection = new SecretSelection(
+                        decryptPassword(accountStore.get(selectedAccountName), getSecretKey()));
                     Toolkit.getDefaultToolkit()
                            .getSystemClipboard()
-                           .setContents(new StringSelection(
-                               decryptPassword(accountPasswordPairs.get(selectedAccountName), getSecretKey())), null);
+                           .setContents(selection, selection);
                 } catch (Exception err) {
                     JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Decryption failed, password not copied."),
                         "Password decryption failure", JOptionPane.ERROR_MESSAGE);
                     return;
+                } finally {
+                    timer.stop();
                 }
+
+                // Only the metadata changed, so accounts.txt does not need to be written
+                accountIndex.markCopied(selectedAccountName, System.currentTimeMillis());
+                updateAccountIndexFile(accountIndex, accountStore);
+            }
+        });
+
+        historyButton.addActionListener(new ActionListener() {
+            /**
+             * Calls <code>createPasswordHistoryOptionPane</code> which creates a window for the user
+             * to restore a previous password of the selected account, or of an account that was removed.
+             * 
+             * @param e the event being processed
+             */
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int selectedRowIndex = accountTable.getSelectedRow();
+                String selectedAccountName = selectedRowIndex == -1 ? null
+                    : accountTable.getValueAt(selectedRowIndex, 0).toString();
+                createPasswordHistoryOptionPane(selectedAccountName, accountStore, accountIndex, accountTableModel);
+            }
+        });
+
+        undoButton.addActionListener(new ActionListener() {
+            /**
+             * Undoes the last add, remove or restore made from the manager, by applying the inverse
+             * change to that account.
+             * 
+             * @param e the event being processed
+             */
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyLoggedOperation(true, accountStore, accountIndex, accountTableModel);
+            }
+        });
+
+        redoButton.addActionListener(new ActionListener() {
+            /**
+             * Redoes the last change that was undone.
+             * 
+             * @param e the event being processed
+             */
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyLoggedOperation(false, accountStore, accountIndex, accountTableModel);
             }
         });
 
+        // Ctrl+Z undoes and Ctrl+Y or Ctrl+Shift+Z redoes, using Cmd in place of Ctrl on macOS
+        int shortcutMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        addShortcut(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcutMask), undoButton);
+        addShortcut(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcutMask), redoButton);
+        addShortcut(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcutMask | InputEvent.SHIFT_DOWN_MASK), redoButton);
+
         toPasswordGeneratorButton.addActionListener(new ActionListener() {
             /**
              * Creates a <code>PasswordGenerator</code> instance and creates
@@ -212,9 +340,13 @@ public class PasswordManager extends JFrame {
         buttonsPanel.add(addButton);
         buttonsPanel.add(removeButton);
         buttonsPanel.add(copyButton);
+        buttonsPanel.add(historyButton);
+        buttonsPanel.add(undoButton);
+        buttonsPanel.add(redoButton);
         buttonsPanel.add(toPasswordGeneratorButton);
 
-        // Add account table and buttons panel to the main panel
+        // Add filter, account table and buttons panel to the main panel
+        mainPanel.add(filterPanel);
         mainPanel.add(accountTableSP);
         mainPanel.add(buttonsPanel);
 
@@ -222,6 +354,130 @@ public class PasswordManager extends JFrame {
         pane.add(titlePanel, BorderLayout.NORTH);
         pane.add(new JSeparator(), BorderLayout.CENTER);
         pane.add(mainPanel, BorderLayout.SOUTH);
+
+        // The window is shown straight away, and the vault is loaded into it in the background
+        JComponent[] vaultControls = {accountFilterTextField, addButton, removeButton, copyButton, historyButton};
+        for (JComponent vaultControl : vaultControls) {
+            vaultControl.setEnabled(false);
+        }
+        undoButton.setEnabled(false);
+        redoButton.setEnabled(false);
+        loadVault(accountTableModel, vaultControls);
+    }
+
+    /**
+     * Loads the vault on a background thread, so that the window is shown before it has been read.
+     * The account names are sorted on the background thread and added to the table in batches, and
+     * the controls that use the vault are enabled once every account has been added. If the vault
+     * could not be read, the error is shown and the window is closed.
+     *
+     * @param accountTableModel the table model that displays the currently stored account names
+     * @param vaultControls the controls to enable once the vault has been loaded
+     */
+    private void loadVault(DefaultTableModel accountTableModel, JComponent[] vaultControls) {
+        // A new vault is empty, so there is nothing to load
+        if (!createAccountsFileIfMissing()) {
+            readOperationLog();
+            vaultLoaded(new AccountStore(), new AccountIndex(), accountTableModel, vaultControls);
+            return;
+        }
+
+        Thread loader = new Thread(new Runnable() {
+            public void run() {
+                AccountStore loadedStore;
+                try {
+                    loadedStore = accountsFile.read();
+                } catch (IOException err) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            showAccountsFileReadError(err);
+                        }
+                    });
+                    return;
+                }
+
+                AccountIndex loadedIndex;
+                IOException metadataError = null;
+                try {
+                    loadedIndex = accountsFile.readMetadata(loadedStore);
+                } catch (IOException err) {
+                    metadataError = err;
+                    loadedIndex = new AccountIndex();
+                    loadedIndex.retainAccounts(loadedStore);
+                }
+                readOperationLog();
+
+                // Events run in the order they are posted, so every batch is added before the vault is used
+                String[] accountNames = loadedStore.sortedAccountNames();
+                for (int from = 0; from < accountNames.length; from += TABLE_LOAD_BATCH_SIZE) {
+                    String[] batch = Arrays.copyOfRange(accountNames, from,
+                        Math.min(accountNames.length, from + TABLE_LOAD_BATCH_SIZE));
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            for (String account : batch) {
+                                accountTableModel.addRow(new Object[] {account});
+                            }
+                        }
+                    });
+                }
+
+                AccountIndex index = loadedIndex;
+                IOException indexError = metadataError;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (indexError != null)
+                            showMetadataReadError(indexError);
+                        vaultLoaded(loadedStore, index, accountTableModel, vaultControls);
+                    }
+                });
+            }
+        }, "vault-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Starts using a vault once it has been loaded and its accounts added to the table: enables
+     * the controls that use it and starts watching for changes made by other writers.
+     *
+     * @param loadedStore the accounts that were loaded
+     * @param loadedIndex the metadata of the accounts
+     * @param accountTableModel the table model that displays the currently stored account names
+     * @param vaultControls the controls to enable
+     */
+    private void vaultLoaded(AccountStore loadedStore, AccountIndex loadedIndex, DefaultTableModel accountTableModel,
+        JComponent[] vaultControls) {
+        // The window may have been closed while the vault was loading
+        if (disposed)
+            return;
+
+        accountStore = loadedStore;
+        accountIndex = loadedIndex;
+        for (JComponent vaultControl : vaultControls) {
+            vaultControl.setEnabled(true);
+        }
+        updateUndoButtons();
+        VaultMetrics.recordStartup(VaultMetrics.Operation.STARTUP_TABLE);
+
+        // Reload changed accounts and metadata when the vault is changed by another instance or a
+        // sync tool, and the undo log when another instance or the generator records a change
+        try {
+            List<Path> watchedPaths = new ArrayList<>(accountsFile.getWatchedPaths());
+            watchedPaths.add(operationLog.getPath());
+            accountsFileWatcher = new AccountsFileWatcher(watchedPaths, new Runnable() {
+                public void run() {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            reloadAccountFile(accountStore, accountIndex, accountTableModel);
+                        }
+                    });
+                }
+            });
+            accountsFileWatcher.start();
+        } catch (IOException err) {
+            // Changes made by other writers are still merged in when the file is next written
+            accountsFileWatcher = null;
+        }
     }
 
     /**
@@ -233,178 +489,422 @@ public class PasswordManager extends JFrame {
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeySpecException
      */
-    SecretKey getSecretKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
-        SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        String salt = "testSalt";
-        KeySpec secretSpec = new PBEKeySpec(CIPHER_PASS.toCharArray(), salt.getBytes(), 65536, 256);
-        SecretKey secretKey = new SecretKeySpec(secretKeyFactory.generateSecret(secretSpec).getEncoded(), "AES");
-        return secretKey;
+    static SecretKey getSecretKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.KEY_DERIVATION);
+        try {
+            SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            String salt = "testSalt";
+            PBEKeySpec secretSpec = new PBEKeySpec(CIPHER_PASS.toCharArray(), salt.getBytes(), 65536, 256);
+            byte[] keyBytes = secretKeyFactory.generateSecret(secretSpec).getEncoded();
+            SecretKey secretKey = new SecretKeySpec(keyBytes, "AES");
+
+            // SecretKeySpec keeps its own copy, so wipe the intermediate copies of the key material
+            secretSpec.clearPassword();
+            Secrets.wipe(keyBytes);
+            return secretKey;
+        } finally {
+            timer.stop();
+        }
     }
 
     /**
-     * Encrypts a password/string using the AES algorithm.
+     * Encrypts a password into a vault entry using AES-GCM, which also protects the entry from
+     * being tampered with. Each entry is encrypted with a new random nonce, so the same password
+     * saved for two accounts gives two different entries. An entry is laid out as
+     * <pre>
+     * version (1 byte) | nonce (12 bytes) | ciphertext | authentication tag (16 bytes)
+     * </pre>
+     * where the version byte is also authenticated. The password is padded to a multiple of 16
+     * bytes before it is encrypted, which hides its exact length and makes every entry 13 bytes
+     * longer than a multiple of 16, so it can never be mistaken for a legacy entry. The plaintext
+     * bytes are only held in an off-heap buffer, which is wiped before returning. The password
+     * array itself is not wiped, that is left to the caller.
      *
-     * @param password the password/string to be encrypted
+     * @param password the password to be encrypted
      * @param secretKey the secret key to be used in encryption
-     * @return the encrypted password as a string
-     * @throws NoSuchAlgorithmException
-     * @throws NoSuchPaddingException
-     * @throws InvalidKeyException
-     * @throws IllegalBlockSizeException
-     * @throws BadPaddingException
+     * @return the encrypted password
+     * @throws GeneralSecurityException if the password could not be encrypted
+     */
+    static byte[] encryptPassword(char[] password, SecretKey secretKey) throws GeneralSecurityException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.ENCRYPT);
+        try {
+            byte[] nonce = new byte[GCM_NONCE_LENGTH];
+            NONCE_RANDOM.get().nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+            cipher.updateAAD(new byte[] {ENTRY_VERSION_GCM});
+
+            ByteBuffer plaintext = Secrets.encode(password, ENTRY_BLOCK_SIZE);
+            try {
+                pad(plaintext);
+                ByteBuffer entry = ByteBuffer.allocate(1 + GCM_NONCE_LENGTH + cipher.getOutputSize(plaintext.remaining()));
+                entry.put(ENTRY_VERSION_GCM).put(nonce);
+                cipher.doFinal(plaintext, entry);
+                return Arrays.copyOf(entry.array(), entry.position());
+            } finally {
+                Secrets.wipe(plaintext);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Encrypts a password the way entries were encrypted before AES-GCM was used, with AES in ECB
+     * mode. ECB has no nonce and no integrity protection, so the same password always gives the
+     * same entry. Only kept to compare against in benchmarks and to create legacy entries to test
+     * the migration.
+     *
+     * @param password the password to be encrypted
+     * @param secretKey the secret key to be used in encryption
+     * @return the encrypted password as a legacy entry
+     * @throws GeneralSecurityException if the password could not be encrypted
      */
-    String encryptPassword(String password, SecretKey secretKey)
-        throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-        IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return Base64.getEncoder().encodeToString(cipher.doFinal(password.getBytes()));
+    static byte[] encryptLegacyPassword(char[] password, SecretKey secretKey) throws GeneralSecurityException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.ENCRYPT);
+        try {
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            ByteBuffer plaintext = Secrets.encode(password);
+            try {
+                ByteBuffer ciphertext = ByteBuffer.allocate(cipher.getOutputSize(plaintext.remaining()));
+                cipher.doFinal(plaintext, ciphertext);
+                return Arrays.copyOf(ciphertext.array(), ciphertext.position());
+            } finally {
+                Secrets.wipe(plaintext);
+            }
+        } finally {
+            timer.stop();
+        }
     }
 
     /**
      * Decrypts an encrypted password into plaintext. The password was previously encrypted using the
-     * <code>encryptPassword</code> method.
+     * <code>encryptPassword</code> method, or is a legacy entry encrypted before AES-GCM was used.
+     * The plaintext is returned as a <code>char[]</code> so it can be wiped with <code>Secrets.wipe</code>
+     * as soon as it has been used, and the plaintext bytes are only held in an off-heap buffer,
+     * which is wiped before returning.
      *
      * @param encryptedPassword the password encrypted using <code>encryptPassword</code>
      * @param secretKey the secret key that was used in encryption
      * @return the decrypted password
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
+     * @throws GeneralSecurityException if the password could not be decrypted, or the entry has
+     *                                  been tampered with
+     */
+    static char[] decryptPassword(byte[] encryptedPassword, SecretKey secretKey) throws GeneralSecurityException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.DECRYPT);
+        try {
+            Cipher cipher;
+            ByteBuffer ciphertext;
+            boolean legacy = isLegacyEntry(encryptedPassword);
+            if (legacy) {
+                cipher = Cipher.getInstance("AES");
+                cipher.init(Cipher.DECRYPT_MODE, secretKey);
+                ciphertext = ByteBuffer.wrap(encryptedPassword);
+            } else if (encryptedPassword.length >= 1 + GCM_NONCE_LENGTH + GCM_TAG_BITS / 8
+                && encryptedPassword[0] == ENTRY_VERSION_GCM) {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, secretKey,
+                    new GCMParameterSpec(GCM_TAG_BITS, encryptedPassword, 1, GCM_NONCE_LENGTH));
+                cipher.updateAAD(encryptedPassword, 0, 1);
+                ciphertext = ByteBuffer.wrap(encryptedPassword, 1 + GCM_NONCE_LENGTH,
+                    encryptedPassword.length - 1 - GCM_NONCE_LENGTH);
+            } else {
+                throw new GeneralSecurityException("Encrypted password has an unknown version " + encryptedPassword[0]);
+            }
+
+            ByteBuffer plaintext = Secrets.scratchBuffer(cipher.getOutputSize(ciphertext.remaining()));
+            try {
+                cipher.doFinal(ciphertext, plaintext);
+                plaintext.flip();
+                if (!legacy)
+                    unpad(plaintext);
+                return Secrets.decode(plaintext);
+            } finally {
+                Secrets.wipe(plaintext);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * @param encryptedPassword an encrypted password
+     * @return true if the password was encrypted before AES-GCM was used, and should be migrated
      */
-    private String decryptPassword(String encryptedPassword, SecretKey secretKey)
-        throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-        IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        return new String(cipher.doFinal(Base64.getDecoder().decode(encryptedPassword)));
+    static boolean isLegacyEntry(byte[] encryptedPassword) {
+        // AES in ECB mode always gives whole blocks, AES-GCM entries never do
+        return encryptedPassword.length % ENTRY_BLOCK_SIZE == 0;
     }
 
     /**
-     * Reads the account names their respective accounts passwords into a hashmap
-     * as pairs. If the file "accounts.txt" does not exist, it is created and an
-     * empty hashmap is returned.
+     * Pads a password to a multiple of the block size, with between 1 and 16 bytes that each
+     * hold the number of bytes added.
+     */
+    private static void pad(ByteBuffer plaintext) {
+        int length = plaintext.limit();
+        int padding = ENTRY_BLOCK_SIZE - length % ENTRY_BLOCK_SIZE;
+        plaintext.limit(length + padding);
+        for (int i = length; i < length + padding; i++) {
+            plaintext.put(i, (byte) padding);
+        }
+    }
+
+    private static void unpad(ByteBuffer plaintext) throws BadPaddingException {
+        int padding = plaintext.limit() == 0 ? 0 : plaintext.get(plaintext.limit() - 1);
+        if (padding < 1 || padding > ENTRY_BLOCK_SIZE || padding > plaintext.limit())
+            throw new BadPaddingException("Encrypted password has invalid padding");
+        plaintext.limit(plaintext.limit() - padding);
+    }
+
+    /**
+     * Reads the account names their respective accounts passwords into an account
+     * store. If the file "accounts.txt" does not exist, it is created and an
+     * empty store is returned.
      * 
-     * @return accountPasswordPairs, a HashMap containing account names as keys
-     *         and the accounts assoicated password as the value
+     * @return accountStore, an <code>AccountStore</code> holding account names
+     *         and the accounts associated encrypted password
      */
-    HashMap<String, String> readAccountsFile() {
-        // Create HashMap of account name and their associated passwords
-        HashMap<String, String> accountPasswordPairs = new HashMap<>();
+    AccountStore readAccountsFile() {
+        // Create store of account names and their associated passwords
+        AccountStore accountStore = new AccountStore();
+        if (!createAccountsFileIfMissing())
+            return accountStore;
+
+        // Read account names and accounts passwords while holding a lock on the file
+        try {
+            accountStore = accountsFile.read();
+        } catch (IOException err) {
+            showAccountsFileReadError(err);
+        }
+        return accountStore;
+    }
 
-        // Assert that accounts.txt exists and create it if not
+    /**
+     * Asserts that accounts.txt, or the manifest of a sharded vault, exists and creates an empty
+     * accounts.txt if not. If the file cannot be created, the error is shown and the window is closed.
+     * 
+     * @return true if the vault already existed and needs to be read
+     */
+    private boolean createAccountsFileIfMissing() {
         File curDir = new File("." + File.separator + "PasswordManager");
         String[] fileNames = curDir.list();
-        boolean accountsFileExists = Arrays.stream(fileNames).anyMatch("accounts.txt"::equals);
-        if (!accountsFileExists) {
-            File passwordFile = new File("." + File.separator + "PasswordManager" + File.separator + "accounts.txt");
-            try {
-                passwordFile.createNewFile();
-            } catch (IOException err) {
-                JOptionPane.showMessageDialog(null, createErrorTextArea(err, "File accounts.txt creation failed, closing program."),
-                    "Password file creation failure", JOptionPane.ERROR_MESSAGE);
-                
-                // Wait for the window creation to finish before disposing it
-                SwingUtilities.invokeLater(new Runnable() {
-                    public void run() {
-                        dispose();
-                    }
-                });
-            }
-            return accountPasswordPairs;
-        }
+        boolean accountsFileExists = Arrays.stream(fileNames)
+            .anyMatch(fileName -> fileName.equals("accounts.txt") || fileName.equals(ShardLayout.MANIFEST_FILE_NAME));
+        if (accountsFileExists)
+            return true;
 
-        // Read account names and accounts passwords and store in arrays
-        // An account name is related to a password by having matching indexes
+        File passwordFile = new File("." + File.separator + "PasswordManager" + File.separator + "accounts.txt");
         try {
-            BufferedReader reader = new BufferedReader(new FileReader("." + File.separator + "PasswordManager/accounts.txt"));
-            String accountName = reader.readLine();
-            while (accountName != null) {
-                if (accountName.isEmpty()) {
-                    accountName = reader.readLine();
-                }
-                String accountsPassword = reader.readLine();
-                accountPasswordPairs.put(accountName, accountsPassword);
-                accountName = reader.readLine();
-            }
-            reader.close();
-        } catch (FileNotFoundException err) {
-            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error locating accounts.txt. File should exist, closing program."),
-                    "File accounts.txt not found", JOptionPane.ERROR_MESSAGE);
-                            
+            passwordFile.createNewFile();
+        } catch (IOException err) {
+            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "File accounts.txt creation failed, closing program."),
+                "Password file creation failure", JOptionPane.ERROR_MESSAGE);
+            
             // Wait for the window creation to finish before disposing it
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     dispose();
                 }
             });
-        } catch (IOException err) {
+        }
+        return false;
+    }
+
+    /**
+     * Shows an error that occurred while reading the vault, and closes the window.
+     * 
+     * @param err the error thrown by <code>AccountsFile.read</code>
+     */
+    private void showAccountsFileReadError(IOException err) {
+        if (err instanceof NoSuchFileException) {
+            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error locating accounts.txt. File should exist, closing program."),
+                    "File accounts.txt not found", JOptionPane.ERROR_MESSAGE);
+        } else {
             JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error accessing accounts.txt, closing program."),
                     "File accounts.txt unaccessible", JOptionPane.ERROR_MESSAGE);
-                            
-            // Wait for the window creation to finish before disposing it
-            SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    dispose();
-                }
-            });
         }
-        return accountPasswordPairs;
+
+        // Wait for the window creation to finish before disposing it
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                dispose();
+            }
+        });
+    }
+
+    /**
+     * Reads the metadata of the accounts from accounts-meta.txt into an <code>AccountIndex</code>.
+     * If the metadata cannot be read, the accounts are given metadata with unknown times.
+     * 
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function
+     * @return accountIndex, an <code>AccountIndex</code> holding the metadata of the accounts
+     */
+    AccountIndex readAccountIndex(AccountStore accountStore) {
+        try {
+            return accountsFile.readMetadata(accountStore);
+        } catch (IOException err) {
+            showMetadataReadError(err);
+            AccountIndex accountIndex = new AccountIndex();
+            accountIndex.retainAccounts(accountStore);
+            return accountIndex;
+        }
+    }
+
+    /**
+     * Shows an error that occurred while reading accounts-meta.txt. The accounts are still shown.
+     * 
+     * @param err the error thrown by <code>AccountsFile.readMetadata</code>
+     */
+    private void showMetadataReadError(IOException err) {
+        JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error reading accounts-meta.txt, account details are not shown."),
+                "File accounts-meta.txt unaccessible", JOptionPane.ERROR_MESSAGE);
     }
 
     /**
-     * Updates the account table when an account is added or removed. All rows
-     * are removed from the table and then the table is repopulated using the
-     * account names in the HashMap. The account names are sorted before they
-     * are added to the table.
+     * Updates the account table when an account is added or removed, or the filter is changed.
+     * All rows are removed from the table and then the table is repopulated using the account
+     * names in the account store, or the account names matching the filter found using the
+     * account index. The account names are sorted before they are added to the table.
      * 
-     * @param accountPasswordPairs the HashMap created by the <code>readAccountsFile</code>
-     *                             function containing the current state of the saved account
-     *                             names and passwords
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function containing the current state of the saved account
+     *                     names and passwords
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
      * @param accountTableModel the table model that displays the currently stored
      *                          account names
      */
-    private void updateAccountTable(HashMap<String, String> accountPasswordPairs, DefaultTableModel accountTableModel) {
-        accountTableModel.setRowCount(0);
-        Object[] accountNames = accountPasswordPairs.keySet().toArray();
-        Arrays.sort(accountNames);
-        for (Object account:accountNames) {
-            accountTableModel.addRow(new Object[] {account});
+    private void updateAccountTable(AccountStore accountStore, AccountIndex accountIndex, DefaultTableModel accountTableModel) {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.TABLE_UPDATE);
+        try {
+            accountTableModel.setRowCount(0);
+            String filter = accountFilterTextField.getText();
+            String[] accountNames = filter.isBlank() ? accountStore.sortedAccountNames()
+                : accountIndex.query(filter, System.currentTimeMillis());
+            for (String account:accountNames) {
+                accountTableModel.addRow(new Object[] {account});
+            }
+        } finally {
+            timer.stop();
         }
     }
 
     /**
-     * When a password is added or removed, update the accounts.txt file with the account name
-     * and password pairs in the HashMap.
-     * 
-     * @param accountPasswordPairs the HashMap created by the <code>readAccountsFile</code>
-     *                             function containing the current state of the saved account
-     *                             names and passwords
+     * Updates the row of one account in the accounts table after it was added or removed, without
+     * rebuilding the whole table. The rows are sorted when the table is not filtered, so the row
+     * is found by binary search, otherwise the filtered table is rebuilt.
+     *
+     * @param accountName the account that was added or removed
+     * @param accountStore the <code>AccountStore</code> holding the saved accounts
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
+     * @param accountTableModel the table model that displays the currently stored
+     *                          account names
      */
-    void updateAccountFile(HashMap<String, String> accountPasswordPairs) {
-        // Write over accounts.txt with the account names and passwords currently in the HashMap
+    private void updateAccountTableRow(String accountName, AccountStore accountStore, AccountIndex accountIndex,
+        DefaultTableModel accountTableModel) {
+        if (!accountFilterTextField.getText().isBlank()) {
+            updateAccountTable(accountStore, accountIndex, accountTableModel);
+            return;
+        }
+
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.TABLE_UPDATE);
         try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter("." + File.separator + "PasswordManager/accounts.txt", false));
-            Object[] accountNames = accountPasswordPairs.keySet().toArray();
-            for (int i = 0; i < accountNames.length; i++) {
-                writer.write((String) accountNames[i]);
-                writer.newLine();
-                writer.write((String) accountPasswordPairs.get(accountNames[i]));
-
-                // Avoid writing newlines at the end of the file
-                if (!(i == accountNames.length - 1)) {
-                    writer.newLine();
-                    writer.newLine();
+            int low = 0;
+            int high = accountTableModel.getRowCount();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (accountTableModel.getValueAt(middle, 0).toString().compareTo(accountName) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
                 }
             }
-            writer.close();
+
+            boolean shown = low < accountTableModel.getRowCount()
+                && accountTableModel.getValueAt(low, 0).toString().equals(accountName);
+            boolean saved = accountStore.containsAccount(accountName);
+            if (saved && !shown) {
+                accountTableModel.insertRow(low, new Object[] {accountName});
+            } else if (!saved && shown) {
+                accountTableModel.removeRow(low);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * When a password is added or removed, update the accounts.txt file with the account name
+     * and passwords in the account store.
+     * 
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function containing the current state of the saved account
+     *                     names and passwords
+     * @return true if the file was written, false if it could not be and the window was closed
+     */
+    boolean updateAccountFile(AccountStore accountStore) {
+        // Write over accounts.txt with the account names and passwords currently in the store,
+        // merging in any changes another instance has written since the file was last read
+        try {
+            accountsFile.write(accountStore);
+            return true;
         } catch (IOException err) {
             JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error writing to accounts.txt, closing program."),
                     "Writing to accounts.txt error", JOptionPane.ERROR_MESSAGE);
             dispose();
+            return false;
+        }
+    }
+
+    /**
+     * When an account is added, removed or copied, update the accounts-meta.txt file with the
+     * metadata in the account index.
+     * 
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function containing the current state of the saved account
+     *                     names and passwords
+     */
+    void updateAccountIndexFile(AccountIndex accountIndex, AccountStore accountStore) {
+        try {
+            accountsFile.writeMetadata(accountIndex, accountStore);
+        } catch (IOException err) {
+            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error writing to accounts-meta.txt, account details not saved."),
+                    "Writing to accounts-meta.txt error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Called when accounts.txt, accounts-meta.txt or the undo log has been changed by another
+     * instance of the application or by a sync tool. Only the accounts that changed are merged
+     * into the store, along with the metadata appended since it was last read, which changes on
+     * its own when an account is copied or edited elsewhere, and the accounts table is updated if
+     * either did. The undo log is read again if it changed, so changes made elsewhere can be
+     * undone here.
+     * 
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function containing the current state of the saved account
+     *                     names and passwords
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
+     * @param accountTableModel the table model that displays the currently stored
+     *                          account names
+     */
+    private void reloadAccountFile(AccountStore accountStore, AccountIndex accountIndex, DefaultTableModel accountTableModel) {
+        try {
+            boolean accountsChanged = accountsFile.reload(accountStore);
+            if (accountsFile.reloadMetadata(accountIndex, accountStore) || accountsChanged)
+                updateAccountTable(accountStore, accountIndex, accountTableModel);
+        } catch (IOException err) {
+            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error reloading accounts.txt after it was changed."),
+                    "Reloading accounts.txt error", JOptionPane.ERROR_MESSAGE);
         }
+        try {
+            operationLog.refresh();
+        } catch (IOException err) {
+            showOperationLogError(err);
+        }
+        updateUndoButtons();
     }
 
     /**
@@ -414,18 +914,25 @@ public class PasswordManager extends JFrame {
      * user presses the OK button. If not, a dialog box will appear with a message
      * telling the user that their account name must be unique.
      * 
-     * @param accountPasswordPairs the HashMap created by the <code>readAccountsFile</code>
-     *                             function
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function
+     * @param accountIndex the <code>AccountIndex</code> the metadata of the new account is added to
      * @param accountTableModel the table model that displays the currently stored
      *                          account names
      */
-    private void createAddAccountOptionPane(HashMap<String, String> accountPasswordPairs, DefaultTableModel accountTableModel) {
+    private void createAddAccountOptionPane(AccountStore accountStore, AccountIndex accountIndex, DefaultTableModel accountTableModel) {
         // Create the option pane content
         JTextField accountNameTextField = new JTextField(20);
-        JTextField passwordTextField = new JPasswordField(20);
+        JPasswordField passwordTextField = new JPasswordField(20);
+        JTextField urlTextField = new JTextField(20);
+        JTextField usernameTextField = new JTextField(20);
+        JTextField tagsTextField = new JTextField(20);
         Object[] message = {
             "Account name:", accountNameTextField,
-            "Password:", passwordTextField
+            "Password:", passwordTextField,
+            "URL (optional):", urlTextField,
+            "Username (optional):", usernameTextField,
+            "Tags, comma separated (optional):", tagsTextField
         };
 
         // Show the option pane and carry out input validation
@@ -437,19 +944,21 @@ public class PasswordManager extends JFrame {
             if (input == JOptionPane.CANCEL_OPTION || input == JOptionPane.CLOSED_OPTION)
                 return;
 
-            // Get the inputs from the text fields
+            // Get the inputs from the text fields, wiping the copy of the password once checked
             String inputAccountName = accountNameTextField.getText();
-            String inputPassword = passwordTextField.getText();
+            char[] inputPassword = passwordTextField.getPassword();
+            boolean inputPasswordBlank = Secrets.isBlank(inputPassword);
+            Secrets.wipe(inputPassword);
 
             // Validate that the user has entered something in both inputs fields
-            if (inputAccountName.isBlank() || inputPassword.isBlank()) {
+            if (inputAccountName.isBlank() || inputPasswordBlank) {
                 JOptionPane.showMessageDialog(
                     null, "Account name and password must contain characters", "Invalid input(s)", JOptionPane.ERROR_MESSAGE);
                 continue;
             }
 
             // Validate that the entered account name is unique
-            if (accountPasswordPairs.get(inputAccountName) != null) {
+            if (accountStore.containsAccount(inputAccountName)) {
                 JOptionPane.showMessageDialog(
                     null, "Account name must be unique", "Invalid account name", JOptionPane.ERROR_MESSAGE);
                 continue;
@@ -459,16 +968,267 @@ public class PasswordManager extends JFrame {
             break;
         }
 
+        // Time the save separately from the dialogs, which wait on the user
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.ADD_ACCOUNT);
         try {
-            accountPasswordPairs.put(accountNameTextField.getText(), encryptPassword(passwordTextField.getText(), getSecretKey()));
-        } catch (Exception err) {
-            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Encryption failed, password not saved."),
-                "Password save failure", JOptionPane.ERROR_MESSAGE);
-            return;
+            char[] password = passwordTextField.getPassword();
+            try {
+                accountStore.put(accountNameTextField.getText(), encryptPassword(password, getSecretKey()));
+                accountIndex.put(accountNameTextField.getText(), AccountMetadata.created(urlTextField.getText().trim(),
+                    usernameTextField.getText().trim(), AccountMetadata.parseTags(tagsTextField.getText()), System.currentTimeMillis()));
+            } catch (Exception err) {
+                JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Encryption failed, password not saved."),
+                    "Password save failure", JOptionPane.ERROR_MESSAGE);
+                return;
+            } finally {
+                Secrets.wipe(password);
+                passwordTextField.setText("");
+            }
+            boolean saved = updateAccountFile(accountStore);
+            updateAccountIndexFile(accountIndex, accountStore);
+            if (saved)
+                recordOperation(accountNameTextField.getText(), null, null, accountStore, accountIndex);
+            updateAccountTable(accountStore, accountIndex, accountTableModel);
+        } finally {
+            timer.stop();
         }
-        updateAccountFile(accountPasswordPairs);
         JOptionPane.showMessageDialog(getContentPane(), "Password successfully added", "Password saved", JOptionPane.INFORMATION_MESSAGE);
-        updateAccountTable(accountPasswordPairs, accountTableModel);
+    }
+
+    /**
+     * Creates an option pane listing the previous passwords of an account, newest first, and
+     * restores the one the user picks. Any account with previous passwords can be picked,
+     * including accounts that have been removed. Restoring a password replaces the current
+     * one, which is itself kept in the history so that the restore can be rolled back too.
+     * 
+     * @param selectedAccountName the account selected in the table, or null
+     * @param accountStore the <code>AccountStore</code> created by the <code>readAccountsFile</code>
+     *                     function
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
+     * @param accountTableModel the table model that displays the currently stored
+     *                          account names
+     */
+    private void createPasswordHistoryOptionPane(String selectedAccountName, AccountStore accountStore,
+        AccountIndex accountIndex, DefaultTableModel accountTableModel) {
+        PasswordHistory history;
+        try {
+            history = accountsFile.readHistory();
+        } catch (IOException err) {
+            JOptionPane.showMessageDialog(null, createErrorTextArea(err, "Error reading accounts-history.txt."),
+                "File accounts-history.txt unaccessible", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (history.accountNames().isEmpty()) {
+            JOptionPane.showMessageDialog(getContentPane(), "No passwords have been replaced or removed",
+                "Password history", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // Create the option pane content, listing the versions of the account picked in the combo box
+        JComboBox<String> accountNameComboBox = new JComboBox<>(history.accountNames().toArray(new String[0]));
+        if (selectedAccountName != null && history.accountNames().contains(selectedAccountName))
+            accountNameComboBox.setSelectedItem(selectedAccountName);
+        DefaultListModel<String> versionListModel = new DefaultListModel<>();
+        JList<String> versionList = new JList<>(versionListModel);
+        versionList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        versionList.setVisibleRowCount(8);
+        DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        ActionListener showVersions = event -> {
+            versionListModel.clear();
+            for (PasswordHistory.Version version : history.versions((String) accountNameComboBox.getSelectedItem())) {
+                versionListModel.addElement("Replaced " + dateFormat.format(new Date(version.getReplaced())));
+            }
+            versionList.setSelectedIndex(0);
+        };
+        accountNameComboBox.addActionListener(showVersions);
+        showVersions.actionPerformed(null);
+        Object[] message = {
+            "Account name:", accountNameComboBox,
+            "Previous passwords:", new JScrollPane(versionList)
+        };
+
+        Object[] options = {"Restore", "Cancel"};
+        int input = JOptionPane.showOptionDialog(null, message, "Password history", JOptionPane.OK_CANCEL_OPTION,
+            JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (input != 0 || versionList.getSelectedIndex() == -1)
+            return;
+
+        String accountName = (String) accountNameComboBox.getSelectedItem();
+        List<PasswordHistory.Version> versions = history.versions(accountName);
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.RESTORE_PASSWORD);
+        try {
+            byte[] replacedPassword = accountStore.get(accountName);
+            AccountMetadata replacedMetadata = accountIndex.get(accountName);
+            accountStore.put(accountName, versions.get(versionList.getSelectedIndex()).getCiphertext());
+            accountIndex.markModified(accountName, System.currentTimeMillis());
+            boolean saved = updateAccountFile(accountStore);
+            updateAccountIndexFile(accountIndex, accountStore);
+            if (saved)
+                recordOperation(accountName, replacedPassword, replacedMetadata, accountStore, accountIndex);
+            updateAccountTable(accountStore, accountIndex, accountTableModel);
+        } finally {
+            timer.stop();
+        }
+        JOptionPane.showMessageDialog(getContentPane(), "Password successfully restored", "Password restored",
+            JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Reads the changes that can be undone from accounts-undo.txt, starting with none if it could
+     * not be read. Called while the vault is loaded, before the undo buttons are enabled.
+     */
+    private void readOperationLog() {
+        try {
+            operationLog.read();
+        } catch (IOException err) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    JOptionPane.showMessageDialog(null, createErrorTextArea(err,
+                        "Error reading accounts-undo.txt, earlier changes cannot be undone."),
+                        "Reading accounts-undo.txt error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Records a change to an account in the undo log, after it has been made to the store and
+     * the index and written to the vault, and updates the undo buttons.
+     *
+     * @param accountName the account that was changed
+     * @param before the encrypted password before the change, or null if the account was added
+     * @param beforeMetadata the metadata of the account before the change, or null
+     * @param accountStore the <code>AccountStore</code> holding the saved accounts
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
+     */
+    private void recordOperation(String accountName, byte[] before, AccountMetadata beforeMetadata,
+        AccountStore accountStore, AccountIndex accountIndex) {
+        byte[] after = accountStore.get(accountName);
+        AccountMetadata metadata = after != null ? accountIndex.get(accountName) : beforeMetadata;
+        recordOperation(new OperationLog.Operation(accountName, before, after, metadata));
+        updateUndoButtons();
+    }
+
+    /**
+     * Records a change in the undo log, after it has been made to the store and the index and
+     * written to the vault, so the log never holds a change that was not saved. Used
+     * directly for changes made from the generator, as they are saved through an instance without
+     * a window.
+     *
+     * @param operation the change that was made
+     */
+    void recordOperation(OperationLog.Operation operation) {
+        try {
+            operationLog.record(operation);
+        } catch (IOException err) {
+            showOperationLogError(err);
+        }
+    }
+
+    /**
+     * Undoes the last change made from the manager or the generator, or redoes the last change
+     * undone, by applying the change or its inverse to the accounts it made. Only the shards
+     * holding those accounts are rewritten, each of at most a few thousand accounts, so the time
+     * taken does not grow with the number of accounts saved. If an account has been changed since,
+     * for example by another instance or a sync, the change is dropped instead of overwriting it.
+     *
+     * @param undo true to undo, false to redo
+     * @param accountStore the <code>AccountStore</code> holding the saved accounts
+     * @param accountIndex the <code>AccountIndex</code> holding the metadata of the accounts
+     * @param accountTableModel the table model that displays the currently stored
+     *                          account names
+     */
+    private void applyLoggedOperation(boolean undo, AccountStore accountStore, AccountIndex accountIndex,
+        DefaultTableModel accountTableModel) {
+        // Another instance may have recorded, undone or redone a change since
+        try {
+            operationLog.refresh();
+        } catch (IOException err) {
+            showOperationLogError(err);
+            return;
+        }
+        OperationLog.Operation logged = undo ? operationLog.peekUndo() : operationLog.peekRedo();
+        if (logged == null) {
+            updateUndoButtons();
+            return;
+        }
+
+        OperationLog.Operation operation = undo ? logged.inverse() : logged;
+        VaultMetrics.Timer timer = VaultMetrics.start(undo ? VaultMetrics.Operation.UNDO : VaultMetrics.Operation.REDO);
+        try {
+            if (!operation.appliesTo(accountStore)) {
+                try {
+                    operationLog.discard(undo, logged);
+                } catch (IOException err) {
+                    showOperationLogError(err);
+                }
+                updateUndoButtons();
+                JOptionPane.showMessageDialog(getContentPane(), "The " + logged.describe() + " cannot be "
+                    + (undo ? "undone" : "redone") + " as "
+                    + (logged.getAccountNames().size() == 1 ? "the account has" : "an account has") + " been changed since",
+                    undo ? "Undo" : "Redo", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            operation.apply(accountStore, accountIndex, System.currentTimeMillis());
+            boolean saved = updateAccountFile(accountStore);
+            updateAccountIndexFile(accountIndex, accountStore);
+            try {
+                if (saved && undo) {
+                    operationLog.undone(logged);
+                } else if (saved) {
+                    operationLog.redone(logged);
+                }
+            } catch (IOException err) {
+                showOperationLogError(err);
+            }
+            List<String> accountNames = operation.getAccountNames();
+            if (accountNames.size() == 1) {
+                updateAccountTableRow(accountNames.get(0), accountStore, accountIndex, accountTableModel);
+            } else {
+                updateAccountTable(accountStore, accountIndex, accountTableModel);
+            }
+        } finally {
+            timer.stop();
+        }
+        updateUndoButtons();
+    }
+
+    /**
+     * Enables the undo and redo buttons when there is a change to undo or redo, and describes
+     * the change in their tool tips.
+     */
+    private void updateUndoButtons() {
+        OperationLog.Operation nextUndo = operationLog.peekUndo();
+        OperationLog.Operation nextRedo = operationLog.peekRedo();
+        undoButton.setEnabled(nextUndo != null);
+        undoButton.setToolTipText(nextUndo == null ? null : "Undo " + nextUndo.describe());
+        redoButton.setEnabled(nextRedo != null);
+        redoButton.setToolTipText(nextRedo == null ? null : "Redo " + nextRedo.describe());
+    }
+
+    private void showOperationLogError(IOException err) {
+        JOptionPane.showMessageDialog(null, createErrorTextArea(err,
+            "Error reading or writing accounts-undo.txt, changes may not be undoable."),
+            "Undo log error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Clicks a button when a key is pressed anywhere in the window. Clicking a disabled button
+     * does nothing.
+     *
+     * @param keyStroke the key that clicks the button
+     * @param button the button to click
+     */
+    private void addShortcut(KeyStroke keyStroke, JButton button) {
+        Object actionKey = button.getText() + " " + keyStroke;
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(keyStroke, actionKey);
+        getRootPane().getActionMap().put(actionKey, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                button.doClick();
+            }
+        });
     }
 
     /**
@@ -492,15 +1252,26 @@ public class PasswordManager extends JFrame {
     }
 
     /**
-     * Creates an instance of the GUI and adds components, then displays the window.
+     * Stops watching accounts.txt for changes when the window is closed.
+     */
+    @Override
+    public void dispose() {
+        disposed = true;
+        if (accountsFileWatcher != null)
+            accountsFileWatcher.close();
+        super.dispose();
+    }
+
+    /**
+     * Adds the components to this window, then displays it. The vault is loaded into the
+     * window in the background after it is shown.
      */
     public void createAndShowWindow() {
-        // Create the password manager window
-        PasswordManager passwordManager = new PasswordManager("Password Manager");
         // Add the content to the pane
-        passwordManager.addComponents(passwordManager.getContentPane());
+        addComponents(getContentPane());
         // Display the window
-        passwordManager.pack();
-        passwordManager.setVisible(true);
+        pack();
+        setVisible(true);
+        VaultMetrics.recordStartup(VaultMetrics.Operation.STARTUP_WINDOW);
     }    
 }
@@ -0,0 +1,57 @@
+package app;
+
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+
+/**
+ * A clipboard selection holding a password as a <code>char[]</code>. Unlike
+ * <code>StringSelection</code>, the password is only turned into a string when something
+ * pastes it, and the array is wiped as soon as another application takes over the clipboard.
+ * The selection should be set as its own owner so that it is told when that happens.
+ */
+public class SecretSelection implements Transferable, ClipboardOwner {
+    private final char[] password;
+    private boolean wiped = false;
+
+    /**
+     * @param password the password to place on the clipboard, which the selection
+     *                 takes ownership of and wipes when it is replaced
+     */
+    public SecretSelection(char[] password) {
+        this.password = password;
+    }
+
+    @Override
+    public DataFlavor[] getTransferDataFlavors() {
+        return new DataFlavor[] {DataFlavor.stringFlavor};
+    }
+
+    @Override
+    public boolean isDataFlavorSupported(DataFlavor flavor) {
+        return DataFlavor.stringFlavor.equals(flavor);
+    }
+
+    @Override
+    public synchronized Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+        if (!isDataFlavorSupported(flavor) || wiped)
+            throw new UnsupportedFlavorException(flavor);
+
+        // Pasting needs a string, which is only made when something asks for it
+        return new String(password);
+    }
+
+    /**
+     * Wipes the password once something else has been copied to the clipboard.
+     *
+     * @param clipboard the clipboard that is no longer owned
+     * @param contents the contents that were replaced
+     */
+    @Override
+    public synchronized void lostOwnership(Clipboard clipboard, Transferable contents) {
+        Secrets.wipe(password);
+        wiped = true;
+    }
+}
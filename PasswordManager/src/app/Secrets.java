@@ -0,0 +1,147 @@
+package app;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Helpers for handling plaintext passwords as <code>char[]</code> and direct <code>ByteBuffer</code>s
+ * rather than strings. Strings are immutable and stay on the heap until they are garbage collected,
+ * so every decrypted or typed password held as a string lingers for an unknown time and adds to GC
+ * pressure. Arrays and buffers can be wiped as soon as the password has been used.
+ * <p>
+ * Passwords are encoded with the platform default charset, matching the
+ * <code>String.getBytes()</code> calls that encrypted the passwords already saved in accounts.txt.
+ */
+final class Secrets {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int INITIAL_SCRATCH_CAPACITY = 256;
+
+    // One off-heap scratch buffer per thread, reused for the plaintext bytes of every password
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(INITIAL_SCRATCH_CAPACITY);
+        }
+    };
+
+    private Secrets() {
+    }
+
+    /**
+     * Returns this thread's direct scratch buffer, cleared and with at least the given capacity.
+     * The buffer is only valid until the next call on the same thread, and should be wiped
+     * with <code>wipe</code> as soon as it is no longer needed.
+     *
+     * @param capacity the number of bytes needed
+     * @return the scratch buffer
+     */
+    static ByteBuffer scratchBuffer(int capacity) {
+        ByteBuffer scratch = SCRATCH.get();
+        if (scratch.capacity() < capacity) {
+            wipe(scratch);
+            scratch = ByteBuffer.allocateDirect(Math.max(capacity, scratch.capacity() * 2));
+            SCRATCH.set(scratch);
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    /**
+     * Encodes a password into this thread's direct scratch buffer.
+     *
+     * @param password the plaintext password
+     * @return the scratch buffer, flipped so that it holds the encoded password
+     */
+    static ByteBuffer encode(char[] password) {
+        return encode(password, 0);
+    }
+
+    /**
+     * Encodes a password into this thread's direct scratch buffer, leaving room after it for
+     * padding to be added.
+     *
+     * @param password the plaintext password
+     * @param spareCapacity the number of bytes to leave room for after the encoded password
+     * @return the scratch buffer, flipped so that it holds the encoded password
+     */
+    static ByteBuffer encode(char[] password, int spareCapacity) {
+        CharsetEncoder encoder = CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = scratchBuffer((int) Math.ceil(password.length * encoder.maxBytesPerChar()) + spareCapacity);
+        encoder.encode(CharBuffer.wrap(password), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * Decodes the remaining bytes of a buffer into a password. The buffer is not wiped.
+     *
+     * @param bytes the encoded plaintext password
+     * @return the plaintext password
+     */
+    static char[] decode(ByteBuffer bytes) {
+        CharsetDecoder decoder = CHARSET.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] decoded = new char[(int) Math.ceil(bytes.remaining() * decoder.maxCharsPerByte())];
+        CharBuffer chars = CharBuffer.wrap(decoded);
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+
+        char[] password = Arrays.copyOf(decoded, chars.position());
+        wipe(decoded);
+        return password;
+    }
+
+    /**
+     * @param password the plaintext password
+     * @return true if the password is empty or only contains white space
+     */
+    static boolean isBlank(char[] password) {
+        for (char c : password) {
+            if (!Character.isWhitespace(c))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Overwrites a password with zeros.
+     *
+     * @param password the password to wipe, may be null
+     */
+    static void wipe(char[] password) {
+        if (password != null)
+            Arrays.fill(password, '\0');
+    }
+
+    /**
+     * Overwrites a password with zeros.
+     *
+     * @param password the password to wipe, may be null
+     */
+    static void wipe(byte[] password) {
+        if (password != null)
+            Arrays.fill(password, (byte) 0);
+    }
+
+    /**
+     * Overwrites the whole of a buffer with zeros, and clears it.
+     *
+     * @param buffer the buffer to wipe
+     */
+    static void wipe(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,223 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The layout of the files holding the accounts of a vault. A vault starts out as the single
+ * accounts.txt file, and once it grows past twice the target shard size it is split into shard
+ * files by the hash of the account name, so that loading reads the shards in parallel and saving a
+ * change only rewrites the shard holding the account.
+ * <p>
+ * The shards of a vault are listed by the accounts-manifest.txt file next to accounts.txt, which
+ * holds the number of shards, the generation of the layout and the version (CRC32 checksum) of each
+ * shard:
+ * <pre>
+ * shards 4 1
+ * 1a2b3c4d
+ * ...
+ * </pre>
+ * The shards of generation <i>g</i> are kept in <code>shards/g/accounts-i.txt</code>, in the same
+ * format as accounts.txt. When a shard grows past twice the target size the vault is rebalanced by
+ * writing every account into a new generation with at least twice as many shards, and then
+ * replacing the manifest, so readers see either the old layout or the new one. The manifest is
+ * always written after the shards it lists, so it is the only file that needs watching.
+ * <p>
+ * The target number of accounts per shard is set by the <code>passwordmanager.shard.size</code>
+ * system property, 1024 by default. Shards are kept small so that saving a change to one account,
+ * such as an undo, rewrites a file of at most a few thousand accounts however large the vault
+ * grows. A vault laid out with a larger target is rebalanced into smaller shards when next written.
+ */
+class ShardLayout {
+    static final String MANIFEST_FILE_NAME = "accounts-manifest.txt";
+    private static final String SHARD_DIRECTORY_NAME = "shards";
+    private static final String MANIFEST_HEADER = "shards";
+
+    private static final int TARGET_SHARD_SIZE = Math.max(1, Integer.getInteger("passwordmanager.shard.size", 1024));
+    private static final int MAX_SHARDS = 1 << 16;
+
+    private final Path directory;
+    private final int shardCount;
+    // Generation 0 is the single accounts.txt file, sharded layouts start at generation 1
+    private final int generation;
+    private final long[] versions;
+
+    private ShardLayout(Path directory, int shardCount, int generation, long[] versions) {
+        this.directory = directory;
+        this.shardCount = shardCount;
+        this.generation = generation;
+        this.versions = versions;
+    }
+
+    /**
+     * Reads the layout of a vault from its manifest. Must be called while holding a lock on the vault.
+     *
+     * @param directory the directory containing the vault
+     * @return the layout listed by the manifest, or the single accounts.txt file if there is no manifest
+     * @throws IOException if the manifest could not be read or is not valid
+     */
+    static ShardLayout read(Path directory) throws IOException {
+        Path manifestPath = directory.resolve(MANIFEST_FILE_NAME);
+        if (!Files.exists(manifestPath))
+            return single(directory);
+
+        String[] lines = new String(Files.readAllBytes(manifestPath), AccountsFile.CHARSET).split("\\R");
+        try {
+            String[] header = lines[0].split(" ");
+            if (header.length != 3 || !header[0].equals(MANIFEST_HEADER))
+                throw new IOException("Manifest " + manifestPath + " does not start with a shards line");
+
+            int shardCount = Integer.parseInt(header[1]);
+            int generation = Integer.parseInt(header[2]);
+            if (Integer.bitCount(shardCount) != 1 || shardCount > MAX_SHARDS || generation < 1
+                || lines.length != shardCount + 1)
+                throw new IOException("Manifest " + manifestPath + " does not list a valid layout");
+
+            long[] versions = new long[shardCount];
+            for (int shard = 0; shard < shardCount; shard++) {
+                versions[shard] = Long.parseLong(lines[shard + 1].trim(), 16);
+            }
+            return new ShardLayout(directory, shardCount, generation, versions);
+        } catch (NumberFormatException err) {
+            throw new IOException("Manifest " + manifestPath + " is not valid", err);
+        }
+    }
+
+    /**
+     * @param directory the directory containing the vault
+     * @return the layout of a vault held in the single accounts.txt file, whose version is unknown
+     */
+    static ShardLayout single(Path directory) {
+        return new ShardLayout(directory, 1, 0, new long[] {-1});
+    }
+
+    /**
+     * Creates the next generation of a layout, with at least twice as many shards and enough
+     * shards for the number of accounts. The versions of its shards are unknown until written.
+     *
+     * @param accountCount the number of accounts in the vault
+     * @return the new layout
+     */
+    ShardLayout rebalanced(int accountCount) {
+        int shardCount = Math.min(MAX_SHARDS, Math.max(this.shardCount * 2, shardCountFor(accountCount)));
+        long[] versions = new long[shardCount];
+        Arrays.fill(versions, -1);
+        return new ShardLayout(directory, shardCount, generation + 1, versions);
+    }
+
+    /**
+     * @param accountCount the number of accounts in a vault
+     * @return the number of shards that keeps the shards of the vault at the target size, a power of two
+     */
+    static int shardCountFor(int accountCount) {
+        int shardCount = 1;
+        while (shardCount < MAX_SHARDS && (long) shardCount * TARGET_SHARD_SIZE < accountCount) {
+            shardCount *= 2;
+        }
+        return shardCount;
+    }
+
+    /**
+     * @param largestShardSize the number of accounts in the largest shard
+     * @return true if a shard has grown enough that the vault should be rebalanced
+     */
+    boolean needsRebalance(int largestShardSize) {
+        return largestShardSize > 2L * TARGET_SHARD_SIZE && shardCount < MAX_SHARDS;
+    }
+
+    /**
+     * @return true if the vault is held in the single accounts.txt file
+     */
+    boolean isSingle() {
+        return generation == 0;
+    }
+
+    int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @param shard a shard number
+     * @return the version of the shard listed in the manifest, or -1 if unknown
+     */
+    long version(int shard) {
+        return versions[shard];
+    }
+
+    void setVersion(int shard, long version) {
+        versions[shard] = version;
+    }
+
+    /**
+     * @param other another layout, or null
+     * @return true if both layouts are held in the same files
+     */
+    boolean sameShards(ShardLayout other) {
+        return other != null && other.generation == generation && other.shardCount == shardCount;
+    }
+
+    /**
+     * @param shard a shard number
+     * @return the path of the file holding the shard
+     */
+    Path shardPath(int shard) {
+        if (isSingle())
+            return directory.resolve(AccountsFile.ACCOUNTS_FILE_NAME);
+
+        return generationDirectory().resolve("accounts-" + shard + ".txt");
+    }
+
+    /**
+     * @return the directory holding the shards of this generation
+     */
+    Path generationDirectory() {
+        return directory.resolve(SHARD_DIRECTORY_NAME).resolve(Integer.toString(generation));
+    }
+
+    /**
+     * @param accountName an account name
+     * @return the number of the shard holding the account
+     */
+    int shardOf(String accountName) {
+        // String.hashCode is specified exactly, so every machine puts an account in the same shard.
+        // Doubling the shard count splits each shard in two, as a bit is added to the shard number
+        int hash = accountName.hashCode() * 0x9E3779B9;
+        return (hash >>> 16) & (shardCount - 1);
+    }
+
+    /**
+     * Splits the accounts in a store into the shards of this layout.
+     *
+     * @param accountStore the accounts to split
+     * @return the accounts of each shard
+     */
+    AccountStore[] split(AccountStore accountStore) {
+        AccountStore[] shards = new AccountStore[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new AccountStore(accountStore.size() / shardCount);
+        }
+        for (int entry = 0; entry < accountStore.size(); entry++) {
+            String accountName = accountStore.accountName(entry);
+            shards[shardOf(accountName)].put(accountName, accountStore.ciphertext(entry));
+        }
+        return shards;
+    }
+
+    /**
+     * Writes the manifest listing the shards of this layout and their versions. Must be called
+     * while holding the exclusive lock, after every shard has been written.
+     *
+     * @throws IOException if the manifest could not be written
+     */
+    void writeManifest() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        String newLine = System.lineSeparator();
+        builder.append(MANIFEST_HEADER).append(' ').append(shardCount).append(' ').append(generation).append(newLine);
+        for (long version : versions) {
+            builder.append(String.format("%08x", version)).append(newLine);
+        }
+        AtomicFiles.write(directory.resolve(MANIFEST_FILE_NAME), builder.toString().getBytes(AccountsFile.CHARSET));
+    }
+}
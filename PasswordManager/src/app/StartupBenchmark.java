@@ -0,0 +1,209 @@
+package app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Measures how long the password manager takes to start: the time from launching the JVM to the
+ * manager window being shown, and to its table holding every account so the vault can be used.
+ * <p>
+ * Every run starts a fresh JVM, so that class loading and JIT warm-up are measured the way a user
+ * sees them. The runs open a vault of generated accounts in a temporary directory, made from a fixed
+ * seed, so the results are repeatable and do not depend on the real vault. Extra JVM options are
+ * passed to every run, so that for example the class data sharing archive built by the
+ * <code>cds-archive</code> Ant target can be compared against a run without it.
+ * <p>
+ * Run with
+ * <code>java -cp "Password Generator and Manager.jar" app.StartupBenchmark [accounts] [runs] [JVM options]</code>,
+ * for example <code>... 100000 5 -XX:SharedArchiveFile=dist/PasswordManager.jsa</code>. A display is
+ * needed, as the runs open the manager window.
+ */
+public class StartupBenchmark {
+    private static final int DEFAULT_ACCOUNTS = 100000;
+    private static final int DEFAULT_RUNS = 5;
+    private static final long SEED = 42;
+    // Passed to the JVM of each run, which opens the window and prints its startup times
+    private static final String RUN_ARGUMENT = "--run";
+    private static final String RESULT_PREFIX = "startup ";
+    private static final long RUN_TIMEOUT_MILLIS = 120000;
+
+    /**
+     * Runs the benchmark, or a single run of it when started by the benchmark.
+     *
+     * @param args the number of accounts in the vault, the number of runs, and JVM options for the runs
+     */
+    public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals(RUN_ARGUMENT)) {
+            runOnce();
+            return;
+        }
+
+        int accounts = DEFAULT_ACCOUNTS;
+        int runs = DEFAULT_RUNS;
+        try {
+            if (args.length > 0)
+                accounts = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                runs = Integer.parseInt(args[1]);
+        } catch (NumberFormatException err) {
+            runs = 0;
+        }
+        if (accounts < 0 || runs < 1) {
+            System.err.println("Usage: StartupBenchmark [accounts] [runs] [JVM options]");
+            System.exit(2);
+        }
+        List<String> jvmOptions = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : new ArrayList<>();
+
+        Path directory = null;
+        boolean failed = false;
+        try {
+            directory = Files.createTempDirectory("startup-benchmark");
+            createVault(directory.resolve(AccountsFile.DIRECTORY), accounts);
+
+            double[] windowMillis = new double[runs];
+            double[] tableMillis = new double[runs];
+            for (int run = 0; run < runs; run++) {
+                double[] result = launch(directory, jvmOptions);
+                windowMillis[run] = result[0];
+                tableMillis[run] = result[1];
+                System.out.println(String.format("Run %d: window %.1f ms, table %.1f ms", run + 1, result[0], result[1]));
+            }
+            System.out.println(String.format("%d accounts, %d runs%s", accounts, runs,
+                jvmOptions.isEmpty() ? "" : " with " + String.join(" ", jvmOptions)));
+            printSummary("Startup to window", windowMillis);
+            printSummary("Startup to table", tableMillis);
+        } catch (IOException | InterruptedException err) {
+            System.err.println("Benchmark failed: " + err.getMessage());
+            failed = true;
+        } finally {
+            if (directory != null)
+                deleteDirectory(directory);
+        }
+        if (failed)
+            System.exit(1);
+    }
+
+    /**
+     * Writes a vault of generated accounts with random encrypted passwords. The passwords are never
+     * decrypted, so they do not need to be valid ciphertext.
+     */
+    private static void createVault(Path vaultDirectory, int accounts) throws IOException {
+        Files.createDirectories(vaultDirectory);
+        Random random = new Random(SEED);
+        AccountStore accountStore = new AccountStore(accounts);
+        for (int i = 0; i < accounts; i++) {
+            byte[] ciphertext = new byte[16 * (1 + random.nextInt(3))];
+            random.nextBytes(ciphertext);
+            accountStore.put(String.format("account-%07d-%08x", i, random.nextInt()), ciphertext);
+        }
+        new AccountsFile(vaultDirectory).write(accountStore);
+    }
+
+    /**
+     * Starts a JVM that opens the manager window on the vault in a directory, and waits for it to
+     * print its startup times.
+     *
+     * @return the times to the window and to the table, in milliseconds
+     */
+    private static double[] launch(Path directory, List<String> jvmOptions) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add(StartupBenchmark.class.getName());
+        command.add(RUN_ARGUMENT);
+
+        Process process = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true).start();
+        double[] result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append(System.lineSeparator());
+                if (line.startsWith(RESULT_PREFIX)) {
+                    String[] times = line.substring(RESULT_PREFIX.length()).split(" ");
+                    result = new double[] {Double.parseDouble(times[0]), Double.parseDouble(times[1])};
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || result == null)
+            throw new IOException("Run exited with code " + exitCode + ":" + System.lineSeparator() + output);
+        return result;
+    }
+
+    /**
+     * Opens the manager window, waits for the vault to be loaded into it and prints the startup
+     * times, then exits.
+     */
+    private static void runOnce() {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    new PasswordManager("Password Manager").createAndShowWindow();
+                } catch (RuntimeException err) {
+                    // For example when there is no display to open the window on
+                    err.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + RUN_TIMEOUT_MILLIS;
+        try {
+            while (VaultMetrics.startupMillis(VaultMetrics.Operation.STARTUP_TABLE) < 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    System.err.println("Vault was not loaded within " + RUN_TIMEOUT_MILLIS + " ms");
+                    System.exit(1);
+                }
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException err) {
+            System.exit(1);
+        }
+        System.out.println(RESULT_PREFIX + VaultMetrics.startupMillis(VaultMetrics.Operation.STARTUP_WINDOW) + " "
+            + VaultMetrics.startupMillis(VaultMetrics.Operation.STARTUP_TABLE));
+        System.exit(0);
+    }
+
+    /**
+     * @return the class path of this JVM with every entry made absolute, as the runs are started
+     *         in the vault's directory
+     */
+    private static String absoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(Paths.get(entry).toAbsolutePath().normalize().toString());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static void printSummary(String name, double[] millis) {
+        double[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-18s median %8.1f ms  min %8.1f ms  max %8.1f ms", name,
+            sorted[sorted.length / 2], sorted[0], sorted[sorted.length - 1]));
+    }
+
+    private static void deleteDirectory(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException err) {
+            System.err.println("Could not delete " + directory + ": " + err.getMessage());
+        }
+    }
+}
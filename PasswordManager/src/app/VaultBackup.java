@@ -0,0 +1,540 @@
+package app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Incremental backups of accounts.txt made of content-addressed chunks, so that a backup only
+ * stores the accounts that changed since earlier backups rather than a full copy of the vault.
+ * The metadata in accounts-meta.txt and the password history in accounts-history.txt are backed
+ * up with the accounts in the same way.
+ * <p>
+ * The accounts are sorted by name and split into chunks of about 128 accounts. A chunk ends
+ * after any account whose name hashes to a multiple of 128, so the boundaries depend only on the
+ * names around them: adding, removing or changing an account changes the one chunk holding it,
+ * and every other chunk is identical to one already stored. Chunks are saved in
+ * <code>backups/chunks</code> under the SHA-256 hash of their contents and are only written if
+ * no chunk with that hash exists. A snapshot in <code>backups/snapshots</code> lists the hashes
+ * of the chunks making up the vault at the time of the backup, the accounts first, then the
+ * metadata and history chunks each on a line starting with <code>metadata</code> or
+ * <code>history</code>. Snapshots made before the metadata and history were backed up only list
+ * account chunks, and restoring them leaves the metadata and history as they are.
+ * <p>
+ * A backup stores its chunks and writes its snapshot while holding a lock on
+ * <code>backups/backups.lock</code>, and pruning holds the same lock, so a prune never deletes a
+ * chunk that a running backup has stored but not yet listed in its snapshot.
+ * <p>
+ * Backups are made from the command line, for example hourly by cron or the Windows Task
+ * Scheduler, using <code>backup.bat</code> or
+ * <code>java -cp "Password Generator and Manager.jar" app.VaultBackup backup</code>.
+ */
+public class VaultBackup {
+    static final String BACKUP_DIRECTORY_NAME = "backups";
+    private static final String CHUNKS_DIRECTORY_NAME = "chunks";
+    private static final String SNAPSHOTS_DIRECTORY_NAME = "snapshots";
+    private static final String LOCK_FILE_NAME = "backups.lock";
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+    private static final String ACCOUNTS_HEADER = "accounts ";
+    private static final String METADATA_PREFIX = "metadata ";
+    private static final String HISTORY_PREFIX = "history ";
+
+    // Chunks end after an account whose name hash is a multiple of this, which must be a power of two
+    private static final int AVERAGE_CHUNK_ACCOUNTS = 128;
+    // Caps the size of a chunk if many names in a row miss the boundary
+    private static final int MAX_CHUNK_ACCOUNTS = AVERAGE_CHUNK_ACCOUNTS * 8;
+
+    private final AccountsFile accountsFile;
+    private final Path backupDirectory;
+    private final Path chunksDirectory;
+    private final Path snapshotsDirectory;
+
+    /**
+     * The result of a backup.
+     */
+    public static class Snapshot {
+        private final String name;
+        private final int chunks;
+        private final int newChunks;
+        private final long newBytes;
+
+        Snapshot(String name, int chunks, int newChunks, long newBytes) {
+            this.name = name;
+            this.chunks = chunks;
+            this.newChunks = newChunks;
+            this.newBytes = newBytes;
+        }
+
+        /**
+         * @return the name of the snapshot, used to restore it
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of chunks making up the snapshot
+         */
+        public int getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return the number of chunks that were not already stored by an earlier backup
+         */
+        public int getNewChunks() {
+            return newChunks;
+        }
+
+        /**
+         * @return the number of bytes of new chunks written by the backup
+         */
+        public long getNewBytes() {
+            return newBytes;
+        }
+    }
+
+    /**
+     * Creates a <code>VaultBackup</code> for the accounts.txt file used by the application,
+     * keeping backups in its backups directory.
+     */
+    public VaultBackup() {
+        this(Paths.get(AccountsFile.DIRECTORY), Paths.get(AccountsFile.DIRECTORY, BACKUP_DIRECTORY_NAME));
+    }
+
+    /**
+     * @param vaultDirectory the directory containing accounts.txt
+     * @param backupDirectory the directory the chunks and snapshots are kept in
+     */
+    public VaultBackup(Path vaultDirectory, Path backupDirectory) {
+        accountsFile = new AccountsFile(vaultDirectory);
+        this.backupDirectory = backupDirectory;
+        chunksDirectory = backupDirectory.resolve(CHUNKS_DIRECTORY_NAME);
+        snapshotsDirectory = backupDirectory.resolve(SNAPSHOTS_DIRECTORY_NAME);
+    }
+
+    /**
+     * Backs up the accounts currently in accounts.txt, with their metadata and password history.
+     * Only the chunks that are not already stored are written.
+     *
+     * @return the snapshot that was made
+     * @throws IOException if the vault could not be read, or the backups could not be locked or
+     *                     written
+     */
+    public synchronized Snapshot backup() throws IOException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.BACKUP);
+        try {
+            // The accounts, metadata and history are read under one lock, so they are all from the
+            // same version of the vault, and split into chunks before another writer can change it
+            List<byte[]> accountChunks = new ArrayList<>();
+            List<byte[]> metadataChunks = new ArrayList<>();
+            List<byte[]> historyChunks = new ArrayList<>();
+            AtomicInteger accountCount = new AtomicInteger();
+            accountsFile.runLocked(() -> {
+                AccountStore accountStore = accountsFile.readLocked(false);
+                AccountIndex accountIndex = accountsFile.readMetadataLocked(accountStore);
+                PasswordHistory history = accountsFile.readHistoryLocked();
+                accountCount.set(accountStore.size());
+
+                Base64.Encoder encoder = Base64.getEncoder();
+                List<String> accountNames = Arrays.asList(accountStore.sortedAccountNames());
+                accountChunks.addAll(split(accountNames, accountName ->
+                    accountName + '\n' + encoder.encodeToString(accountStore.get(accountName)) + '\n'));
+                metadataChunks.addAll(split(accountNames, accountName -> {
+                    StringBuilder line = new StringBuilder(AccountIndex.encode(accountName)).append('\t');
+                    AccountIndex.appendMetadata(line, accountIndex.get(accountName));
+                    return line.append('\n').toString();
+                }));
+                historyChunks.addAll(split(history.accountNames(), accountName -> {
+                    StringBuilder lines = new StringBuilder();
+                    for (PasswordHistory.Version version : history.versions(accountName)) {
+                        PasswordHistory.appendFields(lines, accountName, version);
+                        lines.append('\n');
+                    }
+                    return lines.toString();
+                }));
+            });
+
+            // A prune waits until the snapshot listing the chunks has been written
+            try (FileChannel lockChannel = openLockChannel()) {
+                lockChannel.lock();
+                Files.createDirectories(chunksDirectory);
+                AtomicInteger newChunks = new AtomicInteger();
+                AtomicLong newBytes = new AtomicLong();
+                String[] accountHashes = store(accountChunks, newChunks, newBytes);
+                String[] metadataHashes = store(metadataChunks, newChunks, newBytes);
+                String[] historyHashes = store(historyChunks, newChunks, newBytes);
+
+                // The snapshot is written last, so it never refers to a chunk that is missing
+                StringBuilder builder = new StringBuilder(ACCOUNTS_HEADER).append(accountCount.get()).append('\n');
+                for (String hash : accountHashes) {
+                    builder.append(hash).append('\n');
+                }
+                for (String hash : metadataHashes) {
+                    builder.append(METADATA_PREFIX).append(hash).append('\n');
+                }
+                for (String hash : historyHashes) {
+                    builder.append(HISTORY_PREFIX).append(hash).append('\n');
+                }
+                String name = snapshotName(System.currentTimeMillis());
+                Files.createDirectories(snapshotsDirectory);
+                AtomicFiles.write(snapshotsDirectory.resolve(name + SNAPSHOT_EXTENSION),
+                    builder.toString().getBytes(AccountsFile.CHARSET));
+                int chunks = accountHashes.length + metadataHashes.length + historyHashes.length;
+                return new Snapshot(name, chunks, newChunks.get(), newBytes.get());
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Hashes and stores the chunks in parallel, each written at most once.
+     *
+     * @return the hashes of the chunks
+     */
+    private String[] store(List<byte[]> chunks, AtomicInteger newChunks, AtomicLong newBytes) throws IOException {
+        String[] hashes = new String[chunks.size()];
+        try {
+            IntStream.range(0, chunks.size()).parallel().forEach(index -> {
+                hashes[index] = sha256(chunks.get(index));
+                try {
+                    Path chunkPath = chunkPath(hashes[index]);
+                    if (!Files.exists(chunkPath)) {
+                        Files.createDirectories(chunkPath.getParent());
+                        AtomicFiles.write(chunkPath, chunks.get(index));
+                        newChunks.incrementAndGet();
+                        newBytes.addAndGet(chunks.get(index).length);
+                    }
+                } catch (IOException err) {
+                    throw new ChunkException(err);
+                }
+            });
+        } catch (ChunkException err) {
+            throw err.getCause();
+        }
+        return hashes;
+    }
+
+    /**
+     * @return the names of the snapshots, oldest first
+     * @throws IOException if the snapshots directory could not be read
+     */
+    public List<String> snapshots() throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(snapshotsDirectory))
+            return names;
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(snapshotsDirectory, "*" + SNAPSHOT_EXTENSION)) {
+            for (Path path : paths) {
+                String fileName = path.getFileName().toString();
+                names.add(fileName.substring(0, fileName.length() - SNAPSHOT_EXTENSION.length()));
+            }
+        }
+
+        // Snapshot names are timestamps, so they sort oldest first
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Reads the accounts saved by a snapshot. Every chunk is checked against its hash.
+     *
+     * @param snapshotName the name of the snapshot
+     * @return the accounts in the vault at the time of the snapshot
+     * @throws IOException if the snapshot or one of its chunks is missing or damaged
+     */
+    public AccountStore read(String snapshotName) throws IOException {
+        return readAccounts(snapshotName, readSnapshot(snapshotName));
+    }
+
+    private List<String> readSnapshot(String snapshotName) throws IOException {
+        List<String> lines = Files.readAllLines(snapshotsDirectory.resolve(snapshotName + SNAPSHOT_EXTENSION),
+            AccountsFile.CHARSET);
+        if (lines.isEmpty() || !lines.get(0).startsWith(ACCOUNTS_HEADER))
+            throw new IOException("Snapshot " + snapshotName + " is damaged");
+        return lines;
+    }
+
+    private AccountStore readAccounts(String snapshotName, List<String> lines) throws IOException {
+        AccountStore accountStore;
+        try {
+            accountStore = new AccountStore(Integer.parseInt(lines.get(0).substring(ACCOUNTS_HEADER.length())));
+        } catch (NumberFormatException err) {
+            throw new IOException("Snapshot " + snapshotName + " is damaged", err);
+        }
+
+        Base64.Decoder decoder = Base64.getDecoder();
+        for (String hash : lines.subList(1, lines.size())) {
+            if (hash.isEmpty() || hash.startsWith(METADATA_PREFIX) || hash.startsWith(HISTORY_PREFIX))
+                continue;
+
+            String[] chunkLines = new String(readChunk(snapshotName, hash), AccountsFile.CHARSET).split("\n");
+            for (int i = 0; i + 1 < chunkLines.length; i += 2) {
+                accountStore.put(chunkLines[i], decoder.decode(chunkLines[i + 1]));
+            }
+        }
+        return accountStore;
+    }
+
+    /**
+     * @return the contents of the chunks listed on the lines of a snapshot starting with
+     *         <code>prefix</code> joined together, or null if the snapshot lists none
+     */
+    private byte[] readChunks(String snapshotName, List<String> lines, String prefix) throws IOException {
+        ByteArrayOutputStream contents = null;
+        for (String line : lines) {
+            if (!line.startsWith(prefix))
+                continue;
+
+            if (contents == null)
+                contents = new ByteArrayOutputStream();
+            contents.write(readChunk(snapshotName, line.substring(prefix.length())));
+        }
+        return contents == null ? null : contents.toByteArray();
+    }
+
+    /**
+     * Reads a chunk and checks it against its hash.
+     */
+    private byte[] readChunk(String snapshotName, String hash) throws IOException {
+        byte[] chunk;
+        try {
+            chunk = Files.readAllBytes(chunkPath(hash));
+        } catch (NoSuchFileException err) {
+            throw new IOException("Chunk " + hash + " of snapshot " + snapshotName + " is missing", err);
+        }
+        if (!sha256(chunk).equals(hash))
+            throw new IOException("Chunk " + hash + " of snapshot " + snapshotName + " is damaged");
+        return chunk;
+    }
+
+    /**
+     * Replaces the accounts in accounts.txt with the accounts saved by a snapshot, and their
+     * metadata with the metadata it saved. The passwords that are replaced are kept in the
+     * password history, and the previous passwords saved by the snapshot are added back to it.
+     *
+     * @param snapshotName the name of the snapshot
+     * @return the number of accounts restored
+     * @throws IOException if the snapshot could not be read or the vault could not be written
+     */
+    public int restore(String snapshotName) throws IOException {
+        List<String> lines = readSnapshot(snapshotName);
+        AccountStore accountStore = readAccounts(snapshotName, lines);
+        byte[] metadata = readChunks(snapshotName, lines, METADATA_PREFIX);
+        byte[] history = readChunks(snapshotName, lines, HISTORY_PREFIX);
+
+        accountsFile.replace(accountStore);
+        if (metadata != null)
+            accountsFile.replaceMetadata(AccountIndex.parse(metadata), accountStore);
+        if (history != null)
+            accountsFile.mergeHistory(PasswordHistory.parse(history));
+        return accountStore.size();
+    }
+
+    /**
+     * @param snapshotName the name of a snapshot
+     * @return true if the snapshot saved the metadata and password history with the accounts
+     * @throws IOException if the snapshot could not be read
+     */
+    public boolean hasMetadataAndHistory(String snapshotName) throws IOException {
+        for (String line : readSnapshot(snapshotName)) {
+            if (line.startsWith(METADATA_PREFIX) || line.startsWith(HISTORY_PREFIX))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes all but the newest snapshots, and then the chunks no remaining snapshot uses. The
+     * backups are locked while pruning, so a backup running at the same time waits to store its
+     * chunks until the prune is done.
+     *
+     * @param keep the number of snapshots to keep
+     * @return the number of chunks deleted
+     * @throws IOException if the backups could not be locked, a snapshot could not be read or a
+     *                     file could not be deleted
+     */
+    public synchronized int prune(int keep) throws IOException {
+        try (FileChannel lockChannel = openLockChannel()) {
+            lockChannel.lock();
+            return pruneLocked(keep);
+        }
+    }
+
+    private int pruneLocked(int keep) throws IOException {
+        List<String> names = snapshots();
+        for (String name : names.subList(0, Math.max(0, names.size() - keep))) {
+            Files.delete(snapshotsDirectory.resolve(name + SNAPSHOT_EXTENSION));
+        }
+
+        Set<String> usedHashes = new HashSet<>();
+        for (String name : snapshots()) {
+            List<String> lines = Files.readAllLines(snapshotsDirectory.resolve(name + SNAPSHOT_EXTENSION),
+                AccountsFile.CHARSET);
+            for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                // Metadata and history lines start with their prefix, the hash follows it
+                usedHashes.add(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+
+        int deleted = 0;
+        if (!Files.isDirectory(chunksDirectory))
+            return deleted;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunksDirectory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> chunkPaths = Files.newDirectoryStream(prefix)) {
+                    for (Path chunkPath : chunkPaths) {
+                        if (!usedHashes.contains(chunkPath.getFileName().toString())) {
+                            Files.delete(chunkPath);
+                            deleted++;
+                        }
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Splits the records of the accounts, sorted by name, into chunks. Accounts are stored as
+     * their name on one line and their Base64 encoded password on the next, while metadata and
+     * history are stored as the lines of their files. Lines always end with a line feed so the
+     * same accounts give the same chunk on every platform.
+     *
+     * @param sortedAccountNames the account names, sorted
+     * @param record formats the record of an account
+     */
+    private static List<byte[]> split(Collection<String> sortedAccountNames, Function<String, String> record) {
+        List<byte[]> chunks = new ArrayList<>();
+        StringBuilder builder = new StringBuilder();
+        int chunkAccounts = 0;
+        for (String accountName : sortedAccountNames) {
+            builder.append(record.apply(accountName));
+            chunkAccounts++;
+
+            int hash = accountName.hashCode();
+            hash ^= hash >>> 16;
+            if ((hash & (AVERAGE_CHUNK_ACCOUNTS - 1)) == 0 || chunkAccounts == MAX_CHUNK_ACCOUNTS) {
+                chunks.add(builder.toString().getBytes(AccountsFile.CHARSET));
+                builder.setLength(0);
+                chunkAccounts = 0;
+            }
+        }
+        if (chunkAccounts > 0)
+            chunks.add(builder.toString().getBytes(AccountsFile.CHARSET));
+        return chunks;
+    }
+
+    /**
+     * Opens the lock file of the backups. The backups are locked through the returned channel,
+     * and closing the channel releases the lock.
+     */
+    private FileChannel openLockChannel() throws IOException {
+        Files.createDirectories(backupDirectory);
+        return FileChannel.open(backupDirectory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path chunkPath(String hash) {
+        // Spread the chunks over subdirectories so that no directory holds too many files
+        return chunksDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static String snapshotName(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static String sha256(byte[] contents) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(contents)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException err) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(err);
+        }
+    }
+
+    /**
+     * Carries an <code>IOException</code> out of the parallel stream that stores the chunks.
+     */
+    private static class ChunkException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Runs a backup command against the application's accounts.txt file:
+     * <ul>
+     * <li><code>backup</code> backs up the vault</li>
+     * <li><code>list</code> lists the snapshots, oldest first</li>
+     * <li><code>restore snapshot</code> replaces the vault with a snapshot</li>
+     * <li><code>prune keep</code> deletes all but the newest <code>keep</code> snapshots</li>
+     * </ul>
+     *
+     * @param args the command and its argument
+     */
+    public static void main(String[] args) {
+        VaultBackup vaultBackup = new VaultBackup();
+        try {
+            String command = args.length > 0 ? args[0] : "";
+            if (command.equals("backup") && args.length == 1) {
+                Snapshot snapshot = vaultBackup.backup();
+                System.out.println("Created snapshot " + snapshot.getName() + ": " + snapshot.getNewChunks() + " of "
+                    + snapshot.getChunks() + " chunks new, " + snapshot.getNewBytes() + " bytes written");
+            } else if (command.equals("list") && args.length == 1) {
+                for (String name : vaultBackup.snapshots()) {
+                    System.out.println(name);
+                }
+            } else if (command.equals("restore") && args.length == 2) {
+                System.out.println("Restored " + vaultBackup.restore(args[1]) + " accounts from snapshot " + args[1]);
+                if (!vaultBackup.hasMetadataAndHistory(args[1]))
+                    System.out.println("The snapshot has no metadata or password history, they were left as they are");
+            } else if (command.equals("prune") && args.length == 2) {
+                System.out.println("Deleted " + vaultBackup.prune(Integer.parseInt(args[1])) + " unused chunks");
+            } else {
+                System.err.println("Usage: VaultBackup backup | list | restore <snapshot> | prune <keep>");
+                System.exit(2);
+            }
+        } catch (IOException | NumberFormatException err) {
+            System.err.println("Backup failed: " + err);
+            System.exit(1);
+        }
+    }
+}
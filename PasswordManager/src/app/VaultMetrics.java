@@ -0,0 +1,329 @@
+package app;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records how long the vault, crypto, table and generator operations take, so that it is
+ * possible to tell where time goes when the application feels slow.
+ * <p>
+ * Every operation is timed with a <code>Timer</code>, which adds the latency to a histogram for
+ * the operation and emits a JDK Flight Recorder event. User actions such as Add and Copy are
+ * timed as well, so a recording shows each action with the operations it ran nested inside it.
+ * The histograms are exposed through JMX as <code>app:type=VaultMetrics</code>, and can be
+ * written to a file on demand through the <code>dump</code> operation.
+ * <p>
+ * The time from the start of the JVM to the first window being shown, and to the password
+ * manager's table being filled, are recorded once per run as the startup operations, and are
+ * kept when the other histograms are reset.
+ */
+public class VaultMetrics implements VaultMetricsMXBean {
+    static final String OBJECT_NAME = "app:type=VaultMetrics";
+    static final String METRICS_FILE_NAME = "metrics.txt";
+
+    /**
+     * The operations that are timed. User actions are operations started by a button
+     * press, and are made up of the other operations.
+     */
+    enum Operation {
+        KEY_DERIVATION("Key derivation", false),
+        ENCRYPT("Encrypt", false),
+        DECRYPT("Decrypt", false),
+        FILE_READ("File read", false),
+        FILE_WRITE("File write", false),
+        TABLE_UPDATE("Table update", false),
+        PASSWORD_GENERATION("Password generation", false),
+        BACKUP("Backup", false),
+        SYNC("Sync", false),
+        STARTUP_WINDOW("Startup to window", false),
+        STARTUP_TABLE("Startup to table", false),
+        ADD_ACCOUNT("Add", true),
+        REMOVE_ACCOUNT("Remove", true),
+        COPY_PASSWORD("Copy", true),
+        SAVE_PASSWORD("Save Password", true),
+        SAVE_BATCH("Save Batch", true),
+        RESTORE_PASSWORD("Restore", true),
+        UNDO("Undo", true),
+        REDO("Redo", true);
+
+        private final String label;
+        private final boolean userAction;
+
+        Operation(String label, boolean userAction) {
+            this.label = label;
+            this.userAction = userAction;
+        }
+
+        private boolean isStartup() {
+            return this == STARTUP_WINDOW || this == STARTUP_TABLE;
+        }
+    }
+
+    private static final VaultMetrics INSTANCE = new VaultMetrics();
+
+    static {
+        // Starting the platform MBean server is slow, so it is done off the thread showing the first window
+        Thread registration = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+                } catch (Exception err) {
+                    // Metrics are still recorded and emitted as events without JMX
+                }
+            }
+        }, "vault-metrics-registration");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    // Each histogram is replaced as a whole on reset, and published safely to the recording threads
+    private final AtomicReferenceArray<Histogram> histograms = new AtomicReferenceArray<>(Operation.values().length);
+
+    private VaultMetrics() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, new Histogram());
+        }
+    }
+
+    /**
+     * @return the metrics recorded by the application
+     */
+    static VaultMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing an operation. The timer should be stopped when the operation finishes,
+     * in a finally block.
+     *
+     * @param operation the operation being timed
+     * @return the running timer
+     */
+    static Timer start(Operation operation) {
+        return new Timer(operation);
+    }
+
+    /**
+     * Records the time since the JVM started as the latency of a startup operation, unless it
+     * has already been recorded in this run.
+     *
+     * @param operation <code>STARTUP_WINDOW</code> or <code>STARTUP_TABLE</code>
+     */
+    static void recordStartup(Operation operation) {
+        long uptimeNanos = System.nanoTime() - ProcessStart.NANOS;
+        Histogram histogram = INSTANCE.histograms.get(operation.ordinal());
+        synchronized (histogram) {
+            if (histogram.count.sum() == 0)
+                histogram.record(uptimeNanos);
+        }
+    }
+
+    /**
+     * @param operation <code>STARTUP_WINDOW</code> or <code>STARTUP_TABLE</code>
+     * @return the time from the start of the JVM to the operation in milliseconds, or -1 if it
+     *         has not happened yet in this run
+     */
+    static double startupMillis(Operation operation) {
+        Histogram histogram = INSTANCE.histograms.get(operation.ordinal());
+        return histogram.count.sum() == 0 ? -1 : histogram.maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            counts.put(operation.label, histograms.get(operation.ordinal()).count.sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            means.put(operation.label, histograms.get(operation.ordinal()).meanMillis());
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        Map<String, Double> maximums = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            maximums.put(operation.label, histograms.get(operation.ordinal()).maxNanos.get() / 1e6);
+        }
+        return maximums;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-20s %10s %10s %10s %10s %10s %10s%n",
+            "Operation", "Count", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms"));
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = histograms.get(operation.ordinal());
+            builder.append(String.format("%-20s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                operation.label, histogram.count.sum(), histogram.meanMillis(), histogram.percentileMillis(0.5),
+                histogram.percentileMillis(0.9), histogram.percentileMillis(0.99), histogram.maxNanos.get() / 1e6));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Operation operation : Operation.values()) {
+            if (!operation.isStartup())
+                histograms.set(operation.ordinal(), new Histogram());
+        }
+    }
+
+    @Override
+    public String dump() throws IOException {
+        Path path = Paths.get(AccountsFile.DIRECTORY, METRICS_FILE_NAME);
+        dumpToFile(path.toString());
+        return path.toAbsolutePath().toString();
+    }
+
+    @Override
+    public void dumpToFile(String path) throws IOException {
+        Files.write(Paths.get(path), getReport().getBytes(AccountsFile.CHARSET));
+    }
+
+    /**
+     * Times a single run of an operation. Stopping the timer records the latency
+     * and commits the Flight Recorder event, so it is stopped in a finally block:
+     * <pre>
+     * VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.ENCRYPT);
+     * try {
+     *     ...
+     * } finally {
+     *     timer.stop();
+     * }
+     * </pre>
+     */
+    static class Timer {
+        private final Operation operation;
+        private final long startNanos;
+        private final Event event;
+
+        private Timer(Operation operation) {
+            this.operation = operation;
+            this.event = operation.userAction ? new ActionEvent(operation.label) : new OperationEvent(operation.label);
+            event.begin();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Records the time since the timer was started.
+         */
+        void stop() {
+            INSTANCE.histograms.get(operation.ordinal()).record(System.nanoTime() - startNanos);
+            event.commit();
+        }
+    }
+
+    /**
+     * The start of the JVM on the <code>System.nanoTime</code> clock, found when the first
+     * startup operation is recorded.
+     */
+    private static class ProcessStart {
+        private static final long NANOS = System.nanoTime()
+            - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000;
+    }
+
+    /**
+     * A latency histogram with power of two buckets, where bucket <code>i</code> counts the
+     * latencies from 2^i up to 2^(i + 1) microseconds.
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private double meanMillis() {
+            long runs = count.sum();
+            return runs == 0 ? 0 : totalNanos.sum() / 1e6 / runs;
+        }
+
+        /**
+         * @param percentile the percentile as a fraction between 0 and 1
+         * @return the upper bound of the bucket containing the percentile, capped at the
+         *         maximum latency, in milliseconds
+         */
+        private double percentileMillis(double percentile) {
+            long runs = count.sum();
+            if (runs == 0)
+                return 0;
+
+            long target = (long) Math.ceil(runs * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target)
+                    return Math.min((1L << (i + 1)) / 1e3, maxNanos.get() / 1e6);
+            }
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    /**
+     * Flight Recorder event for a vault, crypto, table or generator operation.
+     */
+    @Name("app.VaultOperation")
+    @Label("Vault Operation")
+    @Category({"Password Manager"})
+    @Description("A timed vault, crypto, table or password generator operation")
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        OperationEvent(String operation) {
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Flight Recorder event for a user action, such as pressing the Add or Copy button.
+     */
+    @Name("app.UserAction")
+    @Label("User Action")
+    @Category({"Password Manager"})
+    @Description("A button press and the operations it ran")
+    static class ActionEvent extends Event {
+        @Label("Action")
+        String action;
+
+        ActionEvent(String action) {
+            this.action = action;
+        }
+    }
+}
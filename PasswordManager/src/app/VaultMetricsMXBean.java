@@ -0,0 +1,53 @@
+package app;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Management interface for <code>VaultMetrics</code>, registered with the platform MBean server
+ * as <code>app:type=VaultMetrics</code> so the metrics can be read from JConsole or any other
+ * JMX client while the application is running.
+ */
+public interface VaultMetricsMXBean {
+    /**
+     * @return the number of times each operation has run, keyed by operation name
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return the mean latency of each operation in milliseconds, keyed by operation name
+     */
+    Map<String, Double> getMeanMillis();
+
+    /**
+     * @return the maximum latency of each operation in milliseconds, keyed by operation name
+     */
+    Map<String, Double> getMaxMillis();
+
+    /**
+     * @return a table of the counts and latency percentiles of every operation
+     */
+    String getReport();
+
+    /**
+     * Clears the recorded counts and latencies, except the startup operations, which are only
+     * recorded once per run.
+     */
+    void reset();
+
+    /**
+     * Writes the report to the metrics file next to accounts.txt.
+     *
+     * @return the path of the file that was written
+     * @throws IOException if the file could not be written
+     */
+    String dump() throws IOException;
+
+    /**
+     * Writes the report to the given file.
+     *
+     * @param path the path of the file to write
+     * @throws IOException if the file could not be written
+     */
+    void dumpToFile(String path) throws IOException;
+}
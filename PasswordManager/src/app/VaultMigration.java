@@ -0,0 +1,164 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Upgrades the vault from legacy entries, encrypted with AES in ECB mode, to AES-GCM entries
+ * (see <code>PasswordManager.encryptPassword</code>). New and edited passwords are always saved
+ * as AES-GCM entries and legacy entries can still be decrypted, so the vault keeps working
+ * before and during the migration.
+ * <p>
+ * The migration streams through the vault with <code>AccountsFile.reencode</code>, which holds
+ * one batch of records in memory at a time and re-encrypts its entries in parallel, and then
+ * re-encrypts the password history and the results of past syncs kept by <code>VaultSync</code>.
+ * A re-encrypted sync result no longer matches either vault byte for byte, so the next sync
+ * compares the differing accounts by password, and reports an account removed on one side since
+ * the last sync as a conflict rather than removing it on the other. The undo log cannot be
+ * re-encrypted, as its changes only apply to the entries they were made to, so if it holds legacy
+ * entries it is cleared. Entries that have already been migrated are skipped, so an interrupted
+ * migration can simply be run again. Snapshots made by <code>VaultBackup</code> keep the entries
+ * they were made with, and a restored snapshot can be migrated again.
+ */
+public class VaultMigration {
+    private final AccountsFile accountsFile;
+
+    /**
+     * The entries upgraded by a migration.
+     */
+    public static class Result {
+        private long accounts;
+        private int previousPasswords;
+        private int syncEntries;
+        private int clearedOperations;
+        private long nanos;
+
+        /**
+         * @return the number of accounts whose entries were upgraded
+         */
+        public long getAccounts() {
+            return accounts;
+        }
+
+        /**
+         * @return the number of previous passwords in the history that were upgraded
+         */
+        public int getPreviousPasswords() {
+            return previousPasswords;
+        }
+
+        /**
+         * @return the number of entries in the results of past syncs that were upgraded
+         */
+        public int getSyncEntries() {
+            return syncEntries;
+        }
+
+        /**
+         * @return the number of changes cleared from the undo log, as they held legacy entries
+         */
+        public int getClearedOperations() {
+            return clearedOperations;
+        }
+
+        /**
+         * @return how long the migration took in nanoseconds, including deriving the key
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Creates a <code>VaultMigration</code> for the vault used by the application.
+     */
+    public VaultMigration() {
+        this(Paths.get(AccountsFile.DIRECTORY));
+    }
+
+    /**
+     * @param vaultDirectory the directory containing the vault
+     */
+    public VaultMigration(Path vaultDirectory) {
+        accountsFile = new AccountsFile(vaultDirectory);
+    }
+
+    /**
+     * Re-encrypts every legacy entry in the vault, its password history and the results of past
+     * syncs as an AES-GCM entry, and clears the undo log if it holds legacy entries.
+     *
+     * @return the number of entries that were upgraded
+     * @throws IOException if the vault could not be read or written
+     * @throws GeneralSecurityException if an entry could not be decrypted or encrypted, in which
+     *                                  case the shard holding it is left unchanged
+     */
+    public Result migrate() throws IOException, GeneralSecurityException {
+        long startNanos = System.nanoTime();
+        SecretKey secretKey = PasswordManager.getSecretKey();
+        AccountsFile.Reencoder reencoder = new AccountsFile.Reencoder() {
+            @Override
+            public byte[] reencode(byte[] ciphertext) throws GeneralSecurityException {
+                return reencrypt(ciphertext, secretKey);
+            }
+        };
+
+        Result result = new Result();
+        result.accounts = accountsFile.reencode(reencoder);
+        result.previousPasswords = accountsFile.reencodeHistory(reencoder);
+        for (Path syncPath : VaultSync.syncFiles(accountsFile.getDirectory())) {
+            result.syncEntries += accountsFile.reencodeFile(syncPath, reencoder);
+        }
+        result.clearedOperations = new OperationLog(accountsFile).clearIf(PasswordManager::isLegacyEntry);
+        result.nanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    /**
+     * @param ciphertext an entry from the vault
+     * @param secretKey the key the vault is encrypted with
+     * @return the password encrypted as an AES-GCM entry, or null if the entry already is one
+     * @throws GeneralSecurityException if the entry could not be decrypted or encrypted
+     */
+    static byte[] reencrypt(byte[] ciphertext, SecretKey secretKey) throws GeneralSecurityException {
+        if (!PasswordManager.isLegacyEntry(ciphertext))
+            return null;
+
+        char[] password = PasswordManager.decryptPassword(ciphertext, secretKey);
+        try {
+            return PasswordManager.encryptPassword(password, secretKey);
+        } finally {
+            Secrets.wipe(password);
+        }
+    }
+
+    /**
+     * Migrates the application's vault and prints how many entries were upgraded.
+     *
+     * @param args no arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 0) {
+            System.err.println("Usage: VaultMigration");
+            System.exit(2);
+        }
+
+        try {
+            Result result = new VaultMigration().migrate();
+            double seconds = result.getNanos() / 1e9;
+            System.out.println(String.format("Migrated %d accounts, %d previous passwords and %d entries from past syncs"
+                + " in %.2f s (%.0f entries/s)", result.getAccounts(), result.getPreviousPasswords(),
+                result.getSyncEntries(), seconds,
+                (result.getAccounts() + result.getPreviousPasswords() + result.getSyncEntries()) / seconds));
+            if (result.getClearedOperations() > 0)
+                System.out.println("Cleared " + result.getClearedOperations()
+                    + " changes from the undo log, as they held legacy entries and can no longer be undone");
+        } catch (IOException | GeneralSecurityException err) {
+            System.err.println("Migration failed: " + err);
+            System.exit(1);
+        }
+    }
+}
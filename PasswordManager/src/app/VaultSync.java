@@ -0,0 +1,296 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Two-way sync of the vault with another copy of it, for example one kept in a shared folder
+ * that several machines sync with. Adds, removes and edits made on either side are copied to the
+ * other, and accounts edited on both sides are reported as conflicts without losing either side.
+ * <p>
+ * The differing accounts are found by comparing <code>MerkleTree</code>s of the two vaults. To
+ * tell an add on one side from a remove on the other, the result of the last sync with the same
+ * other vault is kept in an accounts-sync file next to accounts.txt, and each differing account
+ * is compared against it:
+ * <ul>
+ * <li>changed on one side only, the change is copied to the other side</li>
+ * <li>changed on both sides to the same password, the local entry is copied to the other side, as
+ * two encryptions of the same password differ</li>
+ * <li>edited on both sides, the local password is kept and the other side's password is saved
+ * under <code>name (sync conflict)</code> on both sides, or <code>name (sync conflict 2)</code>
+ * and so on if that name is taken</li>
+ * <li>edited on one side and removed on the other, the edited password is kept</li>
+ * </ul>
+ * Both vaults are written through <code>AccountsFile</code>, so the sync is safe to run while the
+ * application is open on either side, and every replaced password is kept in the password history.
+ */
+public class VaultSync {
+    static final String CONFLICT_SUFFIX = " (sync conflict)";
+    private static final String SYNC_FILE_PREFIX = "accounts-sync-";
+
+    private final Path localDirectory;
+    private final Path otherDirectory;
+    // Derived the first time two entries need decrypting to compare them
+    private SecretKey secretKey;
+
+    /**
+     * The changes made by a sync.
+     */
+    public static class Result {
+        private final List<String> pulled = new ArrayList<>();
+        private final List<String> pushed = new ArrayList<>();
+        private final List<String> conflicts = new ArrayList<>();
+        private long comparisons;
+
+        /**
+         * @return the accounts added, removed or changed in the local vault
+         */
+        public List<String> getPulled() {
+            return Collections.unmodifiableList(pulled);
+        }
+
+        /**
+         * @return the accounts added, removed or changed in the other vault
+         */
+        public List<String> getPushed() {
+            return Collections.unmodifiableList(pushed);
+        }
+
+        /**
+         * @return a description of each account that was changed on both sides
+         */
+        public List<String> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        /**
+         * @return the number of tree hashes compared to find the differing accounts
+         */
+        public long getComparisons() {
+            return comparisons;
+        }
+    }
+
+    /**
+     * @param localDirectory the directory containing the local accounts.txt
+     * @param otherDirectory the directory containing the other copy of accounts.txt
+     */
+    public VaultSync(Path localDirectory, Path otherDirectory) {
+        this.localDirectory = localDirectory;
+        this.otherDirectory = otherDirectory;
+    }
+
+    /**
+     * Syncs the two vaults, so that afterwards both hold the same accounts. The other vault is
+     * created if it does not exist yet, so the first sync to a new folder copies every account.
+     *
+     * @return the changes made to each vault and the conflicts found
+     * @throws IOException if either vault or the last sync could not be read or written
+     */
+    public Result sync() throws IOException {
+        VaultMetrics.Timer timer = VaultMetrics.start(VaultMetrics.Operation.SYNC);
+        try {
+            AccountsFile localFile = new AccountsFile(localDirectory);
+            AccountsFile otherFile = new AccountsFile(otherDirectory);
+            AccountStore local = localFile.read();
+            Files.createDirectories(otherDirectory);
+            AccountStore other = otherFile.read(true);
+            Path syncPath = localDirectory.resolve(syncFileName());
+            AccountStore base = Files.exists(syncPath) ? AccountsFileLoader.read(syncPath).parse() : new AccountStore();
+
+            Result result = new Result();
+            int leafCount = MerkleTree.leafCountFor(local.size(), other.size());
+            MerkleTree localTree = new MerkleTree(local, leafCount);
+            MerkleTree otherTree = new MerkleTree(other, leafCount);
+            long[] comparisons = new long[1];
+            Set<String> accountNames = new TreeSet<>(localTree.differingAccounts(otherTree, comparisons));
+            result.comparisons = comparisons[0];
+
+            for (String accountName : accountNames) {
+                merge(accountName, base.get(accountName), local, other, result);
+            }
+
+            // Writing merges in anything changed on either side while the sync ran, which is left
+            // out of the last sync so that the next sync copies it across
+            byte[] syncedContents = AccountsFile.format(local);
+            if (!result.pulled.isEmpty())
+                localFile.write(local);
+            if (!result.pushed.isEmpty())
+                otherFile.write(other);
+            syncMetadata(localFile, local, otherFile, other);
+
+            AtomicFiles.write(syncPath, syncedContents);
+            return result;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Merges one account that differs between the vaults, given its password at the last sync.
+     */
+    private void merge(String accountName, byte[] basePassword, AccountStore local, AccountStore other,
+        Result result) {
+        byte[] localPassword = local.get(accountName);
+        byte[] otherPassword = other.get(accountName);
+        if (Arrays.equals(localPassword, otherPassword))
+            return;
+
+        if (Arrays.equals(localPassword, basePassword)) {
+            // Only the other side changed
+            copy(accountName, otherPassword, local);
+            result.pulled.add(accountName);
+        } else if (Arrays.equals(otherPassword, basePassword)) {
+            // Only the local side changed
+            copy(accountName, localPassword, other);
+            result.pushed.add(accountName);
+        } else if (localPassword == null) {
+            copy(accountName, otherPassword, local);
+            result.pulled.add(accountName);
+            result.conflicts.add(accountName + ": removed locally but edited in the other vault, kept the edit");
+        } else if (otherPassword == null) {
+            copy(accountName, localPassword, other);
+            result.pushed.add(accountName);
+            result.conflicts.add(accountName + ": removed in the other vault but edited locally, kept the edit");
+        } else if (samePassword(localPassword, otherPassword)) {
+            // Both sides saved the same password, for example by migrating the vault on each side
+            copy(accountName, localPassword, other);
+            result.pushed.add(accountName);
+        } else {
+            String conflictName = conflictName(accountName, local, other);
+            other.put(accountName, localPassword);
+            other.put(conflictName, otherPassword);
+            local.put(conflictName, otherPassword);
+            result.pushed.add(accountName);
+            result.pushed.add(conflictName);
+            result.pulled.add(conflictName);
+            result.conflicts.add(accountName + ": edited in both vaults, kept the local password and saved the other as \""
+                + conflictName + "\"");
+        }
+    }
+
+    /**
+     * @return true if two entries hold the same password. Entries that could not be decrypted are
+     *         reported as different, so the merge keeps both
+     */
+    private boolean samePassword(byte[] localPassword, byte[] otherPassword) {
+        char[] localPlaintext = null;
+        char[] otherPlaintext = null;
+        try {
+            if (secretKey == null)
+                secretKey = PasswordManager.getSecretKey();
+            localPlaintext = PasswordManager.decryptPassword(localPassword, secretKey);
+            otherPlaintext = PasswordManager.decryptPassword(otherPassword, secretKey);
+            return Arrays.equals(localPlaintext, otherPlaintext);
+        } catch (GeneralSecurityException err) {
+            return false;
+        } finally {
+            Secrets.wipe(localPlaintext);
+            Secrets.wipe(otherPlaintext);
+        }
+    }
+
+    /**
+     * @return the first name for the other side's password of a conflicting account that is not
+     *         used in either vault
+     */
+    private static String conflictName(String accountName, AccountStore local, AccountStore other) {
+        String conflictName = accountName + CONFLICT_SUFFIX;
+        for (int copy = 2; local.containsAccount(conflictName) || other.containsAccount(conflictName); copy++) {
+            conflictName = accountName + " (sync conflict " + copy + ")";
+        }
+        return conflictName;
+    }
+
+    private static void copy(String accountName, byte[] password, AccountStore target) {
+        if (password == null) {
+            target.remove(accountName);
+        } else {
+            target.put(accountName, password);
+        }
+    }
+
+    /**
+     * Merges the metadata of the two vaults, keeping the most recently changed or used copy
+     * of each account's metadata.
+     */
+    private static void syncMetadata(AccountsFile localFile, AccountStore local, AccountsFile otherFile,
+        AccountStore other) throws IOException {
+        AccountIndex localIndex = localFile.readMetadata(local);
+        AccountIndex otherIndex = otherFile.readMetadata(other);
+        boolean localChanged = localIndex.mergeNewer(otherIndex);
+        boolean otherChanged = otherIndex.mergeNewer(localIndex);
+        if (localChanged)
+            localFile.writeMetadata(localIndex, local);
+        if (otherChanged)
+            otherFile.writeMetadata(otherIndex, other);
+    }
+
+    /**
+     * @param directory the directory containing a vault
+     * @return the files holding the result of the last sync of the vault with each other vault
+     * @throws IOException if the directory could not be listed
+     */
+    static List<Path> syncFiles(Path directory) throws IOException {
+        List<Path> syncFiles = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return syncFiles;
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, SYNC_FILE_PREFIX + "*.txt")) {
+            for (Path path : paths) {
+                syncFiles.add(path);
+            }
+        }
+        Collections.sort(syncFiles);
+        return syncFiles;
+    }
+
+    /**
+     * @return the name of the file holding the result of the last sync with the other vault,
+     *         which is different for each other vault synced with
+     */
+    private String syncFileName() {
+        CRC32 crc = new CRC32();
+        byte[] otherPath = otherDirectory.toAbsolutePath().normalize().toString().getBytes(AccountsFile.CHARSET);
+        crc.update(otherPath, 0, otherPath.length);
+        return SYNC_FILE_PREFIX + String.format("%08x", crc.getValue()) + ".txt";
+    }
+
+    /**
+     * Syncs the application's vault with the copy in another directory, and prints the changes
+     * and conflicts.
+     *
+     * @param args the directory containing the other copy of accounts.txt
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: VaultSync <directory of the other vault>");
+            System.exit(2);
+        }
+
+        try {
+            Result result = new VaultSync(Paths.get(AccountsFile.DIRECTORY), Paths.get(args[0])).sync();
+            System.out.println("Pulled " + result.getPulled().size() + " and pushed " + result.getPushed().size()
+                + " accounts after " + result.getComparisons() + " comparisons");
+            for (String conflict : result.getConflicts()) {
+                System.out.println("Conflict: " + conflict);
+            }
+        } catch (IOException err) {
+            System.err.println("Sync failed: " + err);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1 @@
+java -cp "Password Generator and Manager.jar" app.VaultBackup %*
\ No newline at end of file
@@ -0,0 +1 @@
+java -cp "Password Generator and Manager.jar" app.VaultSync %*
\ No newline at end of file